@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Result;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the round trip of a single call over loopback, in every server mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoopbackBenchmark {
+
+    // Base port, offset by the mode
+    private static final int PORT = 5810;
+
+    // Benchmarked call
+    private static final byte[] CALL = "bench echo ping\n".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"SELECTOR", "THREADED", "VIRTUAL"})
+    public Server.Mode mode;
+
+    // Client socket
+    private Socket socket;
+    private OutputStream writer;
+    private BufferedReader reader;
+
+    @Setup
+    public void setup() throws Exception {
+        Module module = new Module("bench") {{
+            register("echo", parameter -> Result.finished(parameter));
+        }};
+        // Every parameter runs in its own fork, so the server is started once per fork
+        int port = PORT + mode.ordinal();
+        Server.begin(port, module, mode);
+        // Connect, retrying until the server is listening
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException connectException) {
+                if (attempt > 100)
+                    throw connectException;
+                Thread.sleep(10);
+            }
+        }
+        socket.setTcpNoDelay(true);
+        writer = socket.getOutputStream();
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        socket.close();
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        writer.write(CALL);
+        writer.flush();
+        return reader.readLine();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Result;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing, executing and answering a single call in every framing, without any networking.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SessionBenchmark {
+
+    // Benchmarked call
+    private static final String CALL = "bench echo The quick brown fox jumps over the lazy dog";
+
+    // Sessions in each mode
+    private Session text;
+    private Session binary;
+
+    // Received bytes
+    private ByteBuffer plainLine;
+    private ByteBuffer base64Line;
+    private ByteBuffer frame;
+
+    // Amount of sent bytes
+    private long sent = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        Module module = new Module("bench") {{
+            register("echo", parameter -> Result.finished(parameter));
+        }};
+        // Create a transport that only keeps the response
+        Transport transport = new Transport() {
+            @Override
+            public void send(ByteBuffer response) {
+                sent += response.remaining();
+            }
+
+            @Override
+            public void send(byte[] response, int length) {
+                sent += length;
+            }
+
+            @Override
+            public void push(Subscription subscription) {
+            }
+        };
+        // Execute on the calling thread, as connections with a thread of their own do, to measure the session alone
+        text = new Session(module, transport, Runnable::run);
+        binary = new Session(module, transport, Runnable::run);
+        binary.receive(ByteBuffer.wrap("!binary\n".getBytes(StandardCharsets.UTF_8)));
+        // Encode the call in each framing
+        plainLine = ByteBuffer.wrap((CALL + "\n").getBytes(StandardCharsets.UTF_8));
+        base64Line = ByteBuffer.wrap(("base64:" + Base64.getEncoder().encodeToString(CALL.getBytes(StandardCharsets.UTF_8)) + "\n").getBytes(StandardCharsets.UTF_8));
+        String[] parts = CALL.split(" ", 3);
+        byte[] moduleID = parts[0].getBytes(StandardCharsets.UTF_8);
+        byte[] function = parts[1].getBytes(StandardCharsets.UTF_8);
+        byte[] parameter = parts[2].getBytes(StandardCharsets.UTF_8);
+        int length = 4 + 1 + moduleID.length + 1 + function.length + parameter.length;
+        frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).putInt(0).put((byte) moduleID.length).put(moduleID).put((byte) function.length).put(function).put(parameter).flip();
+    }
+
+    @Benchmark
+    public long plainLine() throws IOException {
+        plainLine.rewind();
+        text.receive(plainLine);
+        return sent;
+    }
+
+    @Benchmark
+    public long base64Line() throws IOException {
+        base64Line.rewind();
+        text.receive(base64Line);
+        return sent;
+    }
+
+    @Benchmark
+    public long binaryFrame() throws IOException {
+        frame.rewind();
+        binary.receive(frame);
+        return sent;
+    }
+}
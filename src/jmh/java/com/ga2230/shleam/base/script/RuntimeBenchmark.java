@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.script;
+
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Result;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures loading and running scripts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RuntimeBenchmark {
+
+    @Param({"10", "100"})
+    public int lines;
+
+    // Runtime
+    private Runtime runtime;
+
+    // Scripts
+    private String blocking;
+    private String async;
+
+    @Setup
+    public void setup() throws Exception {
+        runtime = new Runtime(new Module("bench") {{
+            register("done", parameter -> Result.finished("Done"));
+            register("pending", parameter -> Result.notFinished("Pending"));
+        }});
+        // Create the scripts
+        StringBuilder blockingBuilder = new StringBuilder();
+        StringBuilder asyncBuilder = new StringBuilder();
+        for (int line = 0; line < lines; line++) {
+            blockingBuilder.append("// Line ").append(line).append('\n').append("b bench done ").append(line).append('\n');
+            asyncBuilder.append("a bench pending ").append(line).append('\n');
+        }
+        blocking = blockingBuilder.toString();
+        async = asyncBuilder.toString();
+        // Keep all async calls running for the tick benchmark (every benchmark runs in its own fork)
+        runtime.execute("load", async);
+        for (int line = 0; line <= lines; line++) {
+            runtime.next();
+        }
+    }
+
+    @Benchmark
+    public Result load() throws Exception {
+        return runtime.execute("load", blocking);
+    }
+
+    @Benchmark
+    public int loadAndRun() throws Exception {
+        runtime.execute("load", blocking);
+        // Tick until every call finished
+        int ticks = 0;
+        while (ticks <= lines) {
+            runtime.next();
+            ticks++;
+        }
+        return ticks;
+    }
+
+    @Benchmark
+    public void tick() {
+        runtime.next();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures module lookups across tree sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DescendantBenchmark {
+
+    // Children per module
+    private static final int FAN_OUT = 10;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int size;
+
+    // Tree
+    private Module root;
+
+    // Looked up IDs
+    private String lastID;
+    private String lastPath;
+
+    @Setup
+    public void setup() {
+        root = new Module("master");
+        // Build a balanced tree, breadth first
+        Module[] modules = new Module[size];
+        modules[0] = root;
+        for (int index = 1; index < size; index++) {
+            modules[index] = new Module("module" + index);
+            modules[(index - 1) / FAN_OUT].adopt(modules[index]);
+        }
+        // Look up the last (deepest) module
+        lastID = "module" + (size - 1);
+        StringBuilder path = new StringBuilder(lastID);
+        for (int index = size - 1; index > 0; ) {
+            index = (index - 1) / FAN_OUT;
+            if (index > 0)
+                path.insert(0, "module" + index + ".");
+        }
+        lastPath = path.insert(0, root.getID() + ".").toString();
+    }
+
+    @Benchmark
+    public Module byID() {
+        return root.descendant(lastID);
+    }
+
+    @Benchmark
+    public Module byPath() {
+        return root.descendant(lastPath);
+    }
+
+    @Benchmark
+    public Module missing() {
+        return root.descendant("missing");
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures telemetry serialization of wide and deep trees.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TelemetryBenchmark {
+
+    // Values per module
+    private static final int VARIABLES = 10;
+
+    @Param({"wide", "deep"})
+    public String shape;
+
+    @Param({"10", "100"})
+    public int size;
+
+    // Tree
+    private Module root;
+
+    @Setup
+    public void setup() {
+        root = fill(new Module("master"));
+        // Adopt all modules by the root (wide), or each by the previous one (deep)
+        Module parent = root;
+        for (int index = 0; index < size; index++) {
+            Module child = fill(new Module("module" + index));
+            parent.adopt(child);
+            if (shape.equals("deep"))
+                parent = child;
+        }
+    }
+
+    @Benchmark
+    public Result telemetry() throws Exception {
+        return root.execute("telemetry", null);
+    }
+
+    @Benchmark
+    public Result telemetryDelta() throws Exception {
+        return root.execute("telemetry_delta", String.valueOf(Module.getVersion()));
+    }
+
+    /**
+     * Writes values of every type to a module.
+     *
+     * @param module Module
+     * @return Module
+     */
+    private static Module fill(Module module) {
+        for (int index = 0; index < VARIABLES; index++) {
+            if (index % 3 == 0) {
+                module.set("string" + index, "value \"" + index + "\"");
+            } else if (index % 3 == 1) {
+                module.setDouble("double" + index, index / 3.0);
+            } else {
+                module.setBoolean("boolean" + index, index % 2 == 0);
+            }
+        }
+        return module;
+    }
+}
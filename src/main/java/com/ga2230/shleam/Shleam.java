@@ -8,6 +8,8 @@ package com.ga2230.shleam;
 import com.ga2230.shleam.base.communication.Server;
 import com.ga2230.shleam.base.structure.Module;
 
+import java.util.concurrent.ExecutorService;
+
 /**
  * This is the launcher for the Shleam framework.
  */
@@ -23,4 +25,26 @@ public abstract class Shleam {
         Server.begin(port, parent);
     }
 
+    /**
+     * Start the Shleam server with a specific connection handling mode.
+     *
+     * @param port   Server port
+     * @param parent Parent module
+     * @param mode   Connection handling mode
+     */
+    public static void begin(int port, Module parent, Server.Mode mode) {
+        Server.begin(port, parent, mode);
+    }
+
+    /**
+     * Start the Shleam server, serving every connection on a thread of the given executor.
+     *
+     * @param port     Server port
+     * @param parent   Parent module
+     * @param executor Executor for the connections' threads
+     */
+    public static void begin(int port, Module parent, ExecutorService executor) {
+        Server.begin(port, parent, executor);
+    }
+
 }
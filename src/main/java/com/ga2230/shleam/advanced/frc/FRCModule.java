@@ -1,41 +1,94 @@
 package com.ga2230.shleam.advanced.frc;
 
+import com.ga2230.shleam.base.structure.Arguments;
+import com.ga2230.shleam.base.structure.AsyncFunction;
+import com.ga2230.shleam.base.structure.AsyncTypedFunction;
 import com.ga2230.shleam.base.structure.Function;
 import com.ga2230.shleam.base.structure.Module;
 import com.ga2230.shleam.base.structure.Result;
+import com.ga2230.shleam.base.structure.Signature;
+import com.ga2230.shleam.base.utils.Logger;
+import com.ga2230.shleam.base.utils.TimerWheel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 public class FRCModule extends Module {
 
+    private static final String ARGUMENT_SEPARATOR = " ";
+
     private long timeOffset = 0;
 
     public FRCModule(String id) {
         super(id);
 
         // Set the time offset
-        this.timeOffset = millis();
+        this.timeOffset = System.nanoTime();
 
-        // Register a special sleep command for async autonomous
-        register("sleep", new Function() {
+        // Register a special sleep command for async autonomous, where every call gets its own timer
+        register("sleep", Signature.of(Signature.Type.LONG), new AsyncTypedFunction() {
+            @Override
+            public CompletableFuture<Result> submit(Arguments arguments) throws Exception {
+                // Finish once the timer expires
+                return TimerWheel.delay(arguments.getLong(0), TimeUnit.MILLISECONDS).thenApply(done -> Result.finished("Done"));
+            }
 
-            private boolean sleeping = false;
-            private long targetTime = 0;
+            @Override
+            public long getTimeout() {
+                // Sleeps always end by themselves
+                return 0;
+            }
+        });
 
+        // Register a delayed call command (e.g. "later 500 robot log Hello"), answered with the call's result
+        register("later", new AsyncFunction() {
             @Override
-            public Result execute(String parameter) throws Exception {
-                if (!sleeping) {
-                    long time = Integer.parseInt(parameter);
-                    // Set target time
-                    targetTime = millis() + time;
-                    // Sleeping switch
-                    sleeping = true;
-                } else {
-                    if (millis() > targetTime) {
-                        sleeping = false;
-                        // Return done
-                        return Result.finished("Done");
-                    }
+            public CompletableFuture<Result> submit(String parameter) throws Exception {
+                // Parse the delay and the call
+                String[] call = parameter == null ? new String[0] : parameter.split(ARGUMENT_SEPARATOR, 4);
+                long time;
+                try {
+                    if (call.length < 3)
+                        throw new NumberFormatException();
+                    time = Long.parseLong(call[0]);
+                } catch (NumberFormatException malformedException) {
+                    return CompletableFuture.completedFuture(Result.notFinished("Malformed arguments, expected (long, module, function, [parameter])"));
                 }
-                return Result.notFinished("Sleeping");
+                // Find the module
+                Module module = descendant(call[1]);
+                if (module == null)
+                    return CompletableFuture.completedFuture(Result.notFinished("Module not found"));
+                // Execute the call once the timer expires, off the timer's thread
+                return TimerWheel.delay(time, TimeUnit.MILLISECONDS).thenComposeAsync(done -> {
+                    try {
+                        // Submit asynchronous functions without the tree's lock, since waiting for them while holding it could deadlock
+                        if (module.function(call[2]) instanceof AsyncFunction)
+                            return module.submit(call[2], call.length > 3 ? call[3] : null);
+                        // Execute everything else while holding the tree's lock
+                        Lock lock = getLock();
+                        lock.lock();
+                        try {
+                            return CompletableFuture.completedFuture(module.execute(call[2], call.length > 3 ? call[3] : null));
+                        } finally {
+                            lock.unlock();
+                        }
+                    } catch (Exception thrownException) {
+                        return CompletableFuture.completedFuture(Result.notFinished(thrownException.toString()));
+                    }
+                }).handle((result, thrownException) -> {
+                    // Turn failures into failure results
+                    if (thrownException != null)
+                        return Result.notFinished((thrownException instanceof CompletionException && thrownException.getCause() != null ? thrownException.getCause() : thrownException).toString());
+                    return result == null ? Result.notFinished("Function not found") : result;
+                });
+            }
+
+            @Override
+            public long getTimeout() {
+                // Delayed calls are limited by their target's time limit
+                return 0;
             }
         });
 
@@ -66,21 +119,21 @@ public class FRCModule extends Module {
     }
 
     /**
-     * Simple log to output.
+     * Simple log to output, without blocking the control loop.
      *
      * @param string Message
      */
     protected void log(String string) {
-        System.out.println(getID().toUpperCase() + ": " + string);
+        Logger.log(getID(), string);
     }
 
     /**
-     * Returns the current system time in millis.
+     * Returns the monotonic time since the module was created, in millis.
      *
-     * @return System time.
+     * @return Module time.
      */
     protected long millis() {
-        return System.currentTimeMillis() - this.timeOffset;
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.timeOffset);
     }
 
 }
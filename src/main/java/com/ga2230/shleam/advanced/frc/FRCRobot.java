@@ -6,6 +6,7 @@ import com.ga2230.shleam.base.script.Runtime;
 public class FRCRobot extends FRCModule {
 
     protected Runtime autonomous;
+    protected FRCScheduler scheduler;
 
     public FRCRobot() {
         super("robot");
@@ -15,6 +16,30 @@ public class FRCRobot extends FRCModule {
         autonomous = new Runtime(this);
         // Adopt autonomous
         adopt(autonomous);
+        // Initialize and adopt the loop scheduler
+        scheduler = new FRCScheduler(this);
+        adopt(scheduler);
+    }
+
+    /**
+     * Runs the autonomous setup, then runs the autonomous loop and the autonomous runtime at a fixed rate.
+     */
+    public void startAutonomous() {
+        scheduler.start(FRCScheduler.Mode.AUTONOMOUS);
+    }
+
+    /**
+     * Runs the teleop setup, then runs the teleop loop at a fixed rate.
+     */
+    public void startTeleop() {
+        scheduler.start(FRCScheduler.Mode.TELEOP);
+    }
+
+    /**
+     * Stops the loop.
+     */
+    public void stop() {
+        scheduler.stop();
     }
 
     public void autonomousSetup() {
@@ -32,4 +57,11 @@ public class FRCRobot extends FRCModule {
     public void teleopLoop() {
 
     }
+
+    /**
+     * Runs after the loop (and the autonomous runtime) on every tick, for updating telemetry values.
+     */
+    public void telemetryLoop() {
+
+    }
 }
@@ -0,0 +1,282 @@
+package com.ga2230.shleam.advanced.frc;
+
+import com.ga2230.shleam.advanced.recorder.Recorder;
+import com.ga2230.shleam.base.utils.Logger;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This is used to run the robot's periodic hooks and its autonomous runtime at a fixed rate.
+ * <p>
+ * Every tick runs three phases while holding the module tree's lock: the loop hook of the current mode, the autonomous
+ * runtime (in autonomous mode), and the telemetry hook. Ticks start on deadlines derived from {@link System#nanoTime()},
+ * so a late tick does not delay the following ones. A tick that ends after the next deadline is an overrun, and the
+ * deadlines it missed are skipped. The mean and maximum time of every phase, and of the jitter (how late ticks start),
+ * are published as variables (in milliseconds) once every {@link #WINDOW} ticks.
+ */
+public class FRCScheduler extends FRCModule {
+
+    /**
+     * The robot modes.
+     */
+    public enum Mode {
+        AUTONOMOUS,
+        TELEOP
+    }
+
+    // Log tag
+    private static final String TAG = "Scheduler";
+
+    // Default period (the standard FRC loop rate)
+    private static final long DEFAULT_PERIOD = TimeUnit.MILLISECONDS.toNanos(20);
+
+    // Amount of ticks per published statistics window
+    private static final int WINDOW = 50;
+
+    // Nanoseconds per published unit (milliseconds)
+    private static final double UNIT = 1_000_000.0;
+
+    // Measured phases
+    private static final int PHASE_LOOP = 0;
+    private static final int PHASE_RUNTIME = 1;
+    private static final int PHASE_TELEMETRY = 2;
+    private static final int PHASE_TICK = 3;
+    private static final int PHASE_JITTER = 4;
+    private static final String[] PHASES = {"loop", "runtime", "telemetry", "tick", "jitter"};
+
+    // Dictionary names
+    private static final String DICTIONARY_MODE = "mode";
+    private static final String DICTIONARY_PERIOD = "period";
+    private static final String DICTIONARY_TICKS = "ticks";
+    private static final String DICTIONARY_OVERRUNS = "overruns";
+    private static final String[] DICTIONARY_MEANS = new String[PHASES.length];
+    private static final String[] DICTIONARY_MAXIMA = new String[PHASES.length];
+
+    static {
+        // Create the phase variable names once
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            DICTIONARY_MEANS[phase] = PHASES[phase] + "_mean";
+            DICTIONARY_MAXIMA[phase] = PHASES[phase] + "_max";
+        }
+    }
+
+    // Scheduled robot
+    private FRCRobot robot;
+
+    // Schedule
+    private volatile long period = DEFAULT_PERIOD;
+    private volatile Mode mode = null;
+    private volatile Thread thread = null;
+
+    // Flight recorder, fed at the end of every telemetry phase
+    private volatile Recorder recorder = null;
+
+    // Statistics (only touched by the scheduler thread)
+    private long ticks = 0;
+    private long overruns = 0;
+    private int windowTicks = 0;
+    private long[] sums = new long[PHASES.length];
+    private long[] maxima = new long[PHASES.length];
+
+    /**
+     * Default constructor.
+     *
+     * @param robot Scheduled robot
+     */
+    public FRCScheduler(FRCRobot robot) {
+        super("scheduler");
+        this.robot = robot;
+        setDouble(DICTIONARY_PERIOD, period / UNIT);
+    }
+
+    /**
+     * Sets the loop period, applied from the next tick.
+     *
+     * @param period Period
+     * @param unit   Period unit
+     */
+    public void setPeriod(long period, TimeUnit unit) {
+        this.period = Math.max(1, unit.toNanos(period));
+        setDouble(DICTIONARY_PERIOD, this.period / UNIT);
+    }
+
+    /**
+     * Sets the flight recorder, which records the module tree's values at the end of every tick.
+     *
+     * @param recorder Recorder, or null to stop recording
+     */
+    public void setRecorder(Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Runs the setup hook of a mode, then starts running its loop on a new scheduler thread (stopping the previous mode).
+     *
+     * @param mode Robot mode
+     */
+    public synchronized void start(Mode mode) {
+        stop();
+        this.mode = mode;
+        set(DICTIONARY_MODE, mode.name().toLowerCase(Locale.ROOT));
+        // Run the setup hook
+        setup(mode == Mode.AUTONOMOUS);
+        // Start the loop
+        thread = new Thread(this::run, "Shleam-Scheduler");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops the loop, waiting for the current tick to end.
+     */
+    public synchronized void stop() {
+        Thread current = thread;
+        thread = null;
+        if (current != null && current != Thread.currentThread()) {
+            LockSupport.unpark(current);
+            try {
+                current.join();
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        set(DICTIONARY_MODE, null);
+    }
+
+    /**
+     * Runs ticks on their deadlines until stopped.
+     */
+    private void run() {
+        long deadline = System.nanoTime();
+        while (thread == Thread.currentThread()) {
+            // Wait for the deadline
+            long now = System.nanoTime();
+            while (now < deadline && thread == Thread.currentThread()) {
+                LockSupport.parkNanos(deadline - now);
+                now = System.nanoTime();
+            }
+            if (thread != Thread.currentThread())
+                break;
+            // Run the tick, measuring how late it started
+            tick(now - deadline);
+            // Schedule the next deadline, skipping the ones missed by an overrun
+            deadline += period;
+            long end = System.nanoTime();
+            if (end > deadline) {
+                overruns++;
+                deadline += ((end - deadline) / period + 1) * period;
+            }
+        }
+    }
+
+    /**
+     * Runs a single tick.
+     *
+     * @param jitter Time the tick started after its deadline
+     */
+    private void tick(long jitter) {
+        Lock lock = getLock();
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            // Loop phase
+            try {
+                if (mode == Mode.AUTONOMOUS) {
+                    robot.autonomousLoop();
+                } else {
+                    robot.teleopLoop();
+                }
+            } catch (RuntimeException loopException) {
+                Logger.log(Logger.Level.ERROR, TAG, loopException.toString());
+            }
+            long loopEnd = System.nanoTime();
+            // Runtime phase
+            try {
+                if (mode == Mode.AUTONOMOUS)
+                    robot.autonomous.next();
+            } catch (RuntimeException runtimeException) {
+                Logger.log(Logger.Level.ERROR, TAG, runtimeException.toString());
+            }
+            long runtimeEnd = System.nanoTime();
+            // Telemetry phase, which publishes the previous window
+            try {
+                robot.telemetryLoop();
+            } catch (RuntimeException telemetryException) {
+                Logger.log(Logger.Level.ERROR, TAG, telemetryException.toString());
+            }
+            try {
+                publish();
+            } catch (RuntimeException publishException) {
+                Logger.log(Logger.Level.ERROR, TAG, publishException.toString());
+            }
+            try {
+                Recorder current = recorder;
+                if (current != null)
+                    current.record();
+            } catch (RuntimeException recordException) {
+                Logger.log(Logger.Level.ERROR, TAG, recordException.toString());
+            }
+            long end = System.nanoTime();
+            // Record the phases
+            record(PHASE_JITTER, jitter);
+            record(PHASE_LOOP, loopEnd - start);
+            record(PHASE_RUNTIME, runtimeEnd - loopEnd);
+            record(PHASE_TELEMETRY, end - runtimeEnd);
+            record(PHASE_TICK, end - start);
+            ticks++;
+            windowTicks++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the setup hook of a mode while holding the module tree's lock.
+     *
+     * @param autonomous Whether to run the autonomous setup hook
+     */
+    private void setup(boolean autonomous) {
+        Lock lock = getLock();
+        lock.lock();
+        try {
+            if (autonomous) {
+                robot.autonomousSetup();
+            } else {
+                robot.teleopSetup();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the time of a phase in the current window.
+     *
+     * @param phase       Phase
+     * @param nanoseconds Time
+     */
+    private void record(int phase, long nanoseconds) {
+        sums[phase] += nanoseconds;
+        maxima[phase] = Math.max(maxima[phase], nanoseconds);
+    }
+
+    /**
+     * Publishes the statistics of the current window once it is complete, and starts a new window.
+     */
+    private void publish() {
+        if (windowTicks < WINDOW)
+            return;
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            setDouble(DICTIONARY_MEANS[phase], sums[phase] / UNIT / windowTicks);
+            setDouble(DICTIONARY_MAXIMA[phase], maxima[phase] / UNIT);
+            sums[phase] = 0;
+            maxima[phase] = 0;
+        }
+        setLong(DICTIONARY_TICKS, ticks);
+        setLong(DICTIONARY_OVERRUNS, overruns);
+        windowTicks = 0;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.advanced.recorder;
+
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Variable;
+import com.ga2230.shleam.base.structure.VariableVisitor;
+import com.ga2230.shleam.base.utils.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * This is used to record the values of a module tree over time, into a memory-mapped ring file of a fixed size.
+ * <p>
+ * Every {@link #record()} appends a frame with the values that changed since the previous frame, and every
+ * {@link #KEYFRAME_INTERVAL} frames (and at the beginning of every lap of the ring) a keyframe with all of the values,
+ * so that the tree can be rebuilt from any keyframe onwards. Frames are written straight into the mapped file (the operating system flushes it), so recording
+ * makes no system calls, and once the file is full the oldest frames are overwritten.
+ * <p>
+ * The file starts with a header of {@link #HEADER_LENGTH} bytes ([int32 magic] [int32 format] [int64 capacity]),
+ * followed by frames aligned to {@link #ALIGNMENT} bytes:
+ * <pre>
+ * Frame: [int32 magic] [int32 length] [int64 sequence] [int64 timestamp] [uint8 keyframe] [int32 count] [entries] [int32 CRC32]
+ * Entry: [uint16 path length] [path] [uint16 name length] [name] [int32 value length, or -1 when cleared] [JSON value]
+ * </pre>
+ * The length counts the whole frame, the timestamp is in epoch milliseconds, strings are UTF-8 (paths and names are
+ * clipped to {@link #MAXIMUM_STRING_LENGTH} bytes), and the CRC covers
+ * everything before it, so partially overwritten frames are detected by {@link Replay}.
+ */
+public class Recorder {
+
+    // Log tag
+    private static final String TAG = "Recorder";
+
+    // File layout
+    static final int FILE_MAGIC = 0x53484c52;
+    static final int FRAME_MAGIC = 0x46524d45;
+    static final int FORMAT = 1;
+    static final int HEADER_LENGTH = 64;
+    static final int ALIGNMENT = 8;
+    static final int FRAME_HEADER_LENGTH = 4 + 4 + 8 + 8 + 1 + 4;
+    static final int CRC_LENGTH = 4;
+    static final int CLEARED = -1;
+    static final int MAXIMUM_STRING_LENGTH = 0xFFFF;
+
+    // Amount of frames between keyframes
+    private static final int KEYFRAME_INTERVAL = 250;
+
+    // Recorded tree
+    private Module root;
+
+    // Ring file
+    private MappedByteBuffer buffer;
+    private ByteBuffer checksummed;
+    private CRC32 crc = new CRC32();
+
+    // Recording state (only touched by the recording thread)
+    private long sequence = 0;
+    private long since = 0;
+    private int count = 0;
+    private StringBuilder value = new StringBuilder();
+
+    // Whether a keyframe did not fit in the ring, which stops the recording
+    private volatile boolean overflowed = false;
+
+    // Reusable visitor, which writes an entry per changed value
+    private VariableVisitor writer = this::write;
+
+    /**
+     * Default constructor.
+     *
+     * @param root     Recorded module tree
+     * @param file     Ring file, which is overwritten
+     * @param capacity Ring file size in bytes
+     * @throws IOException Thrown when the file can't be mapped
+     */
+    public Recorder(Module root, File file, long capacity) throws IOException {
+        if (capacity <= HEADER_LENGTH || capacity > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Capacity must be between " + HEADER_LENGTH + " and " + Integer.MAX_VALUE + " bytes");
+        this.root = root;
+        // Map the file (the mapping stays valid after the file is closed)
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(capacity);
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        this.checksummed = buffer.duplicate();
+        // Write the header
+        buffer.putInt(FILE_MAGIC).putInt(FORMAT).putLong(capacity);
+        buffer.position(HEADER_LENGTH);
+    }
+
+    /**
+     * Appends a frame with the values that changed since the previous frame (or all values, for a keyframe).
+     * Should be called by the thread that writes the values, usually once per loop tick.
+     * Does nothing once the recording overflowed.
+     */
+    public void record() {
+        if (overflowed)
+            return;
+        // Every lap of the ring starts with a keyframe, so that its frames can always be replayed
+        boolean keyframe = sequence % KEYFRAME_INTERVAL == 0 || buffer.position() == HEADER_LENGTH;
+        // Skip frames where nothing changed
+        long version = Module.getVersion();
+        if (!keyframe && version == since)
+            return;
+        int start = buffer.position();
+        try {
+            writeFrame(keyframe);
+        } catch (BufferOverflowException overflowException) {
+            // Wrap around to the beginning of the ring and try again, as a keyframe
+            buffer.position(HEADER_LENGTH);
+            try {
+                writeFrame(true);
+            } catch (BufferOverflowException tooLargeException) {
+                // Every following keyframe would fail the same way, so stop recording
+                buffer.position(start);
+                overflowed = true;
+                Logger.log(Logger.Level.ERROR, TAG, "Keyframe is larger than the ring file, recording stopped");
+                return;
+            }
+        }
+        since = version;
+        sequence++;
+    }
+
+    /**
+     * Writes a frame at the current position.
+     *
+     * @param keyframe Whether to write all values
+     */
+    private void writeFrame(boolean keyframe) {
+        int start = buffer.position();
+        // Write the header, filling in the length and count later
+        buffer.putInt(FRAME_MAGIC).putInt(0).putLong(sequence).putLong(System.currentTimeMillis()).put((byte) (keyframe ? 1 : 0)).putInt(0);
+        // Write the entries
+        count = 0;
+        root.forEachChange(keyframe ? 0 : since, writer);
+        // Fill in the length and count
+        int length = buffer.position() - start + CRC_LENGTH;
+        buffer.putInt(start + 4, length);
+        buffer.putInt(start + FRAME_HEADER_LENGTH - 4, count);
+        // Write the checksum
+        checksummed.limit(buffer.position()).position(start);
+        crc.reset();
+        crc.update(checksummed);
+        buffer.putInt((int) crc.getValue());
+        // Align the next frame, wrapping around when there is no room for another header
+        int aligned = (buffer.position() + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        buffer.position(aligned + FRAME_HEADER_LENGTH + CRC_LENGTH > buffer.capacity() ? HEADER_LENGTH : aligned);
+    }
+
+    /**
+     * Writes a single value's entry.
+     *
+     * @param module   Module
+     * @param name     Value name
+     * @param variable Value
+     */
+    private void write(Module module, String name, Variable variable) {
+        putString(module.getPath());
+        putString(name);
+        if (variable.isEmpty()) {
+            buffer.putInt(CLEARED);
+        } else {
+            value.setLength(0);
+            variable.write(value);
+            // Write the length after the value
+            int position = buffer.position();
+            buffer.putInt(0);
+            buffer.putInt(position, putUTF8(value));
+        }
+        count++;
+    }
+
+    /**
+     * Writes a string, prefixed with its length as an unsigned short. Strings longer than {@link #MAXIMUM_STRING_LENGTH}
+     * bytes are clipped to it (at a character boundary), so that the length always fits.
+     *
+     * @param string String
+     */
+    private void putString(String string) {
+        int position = buffer.position();
+        buffer.putShort((short) 0);
+        int length = putUTF8(string);
+        if (length > MAXIMUM_STRING_LENGTH) {
+            // Clip before the character that crosses the limit
+            length = MAXIMUM_STRING_LENGTH;
+            while (length > 0 && (buffer.get(position + 2 + length) & 0xC0) == 0x80)
+                length--;
+            buffer.position(position + 2 + length);
+        }
+        buffer.putShort(position, (short) length);
+    }
+
+    /**
+     * Encodes characters as UTF-8 into the ring, without allocating.
+     *
+     * @param characters Characters
+     * @return Amount of bytes written
+     */
+    private int putUTF8(CharSequence characters) {
+        int start = buffer.position();
+        for (int index = 0; index < characters.length(); index++) {
+            char current = characters.charAt(index);
+            if (current < 0x80) {
+                buffer.put((byte) current);
+            } else if (current < 0x800) {
+                buffer.put((byte) (0xC0 | (current >> 6))).put((byte) (0x80 | (current & 0x3F)));
+            } else if (Character.isHighSurrogate(current) && index + 1 < characters.length() && Character.isLowSurrogate(characters.charAt(index + 1))) {
+                int codePoint = Character.toCodePoint(current, characters.charAt(++index));
+                buffer.put((byte) (0xF0 | (codePoint >> 18))).put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F))).put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (current >> 12))).put((byte) (0x80 | ((current >> 6) & 0x3F))).put((byte) (0x80 | (current & 0x3F)));
+            }
+        }
+        return buffer.position() - start;
+    }
+
+    /**
+     * Getter for overflowed.
+     *
+     * @return Whether recording stopped because a keyframe did not fit in the ring file
+     */
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Flushes the ring file to the disk, for example at the end of a match.
+     */
+    public void flush() {
+        buffer.force();
+    }
+}
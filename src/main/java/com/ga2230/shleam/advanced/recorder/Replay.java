@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.advanced.recorder;
+
+import com.ga2230.shleam.base.communication.Server;
+import com.ga2230.shleam.base.structure.Function;
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Result;
+import com.ga2230.shleam.base.utils.JSONBuilder;
+import com.ga2230.shleam.base.utils.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * This is used to rebuild the telemetry of a module tree from a {@link Recorder} ring file, for any recorded time.
+ * <p>
+ * Usage: "Replay [file] [milliseconds]" prints the telemetry at the given time since the beginning of the recording,
+ * and "Replay [file] serve [port]" serves the recording through a {@link Server}, where the root module's telemetry
+ * function returns the telemetry at the current replay time, "seek [milliseconds]" moves it, "play [speed]" and "pause"
+ * control the playback, and "range" returns the recording's first and last timestamps.
+ */
+public class Replay {
+
+    // Log tag
+    private static final String TAG = "Replay";
+
+    // Path separator of module paths
+    private static final String PATH_SEPARATOR = ".";
+
+    // Root module ID used when the recording is empty
+    private static final String DEFAULT_ROOT = "master";
+
+    // Valid frames, ordered by sequence
+    private ArrayList<Frame> frames = new ArrayList<>();
+
+    // Ring file contents
+    private ByteBuffer buffer;
+
+    /**
+     * Default constructor.
+     *
+     * @param file Ring file
+     * @throws IOException Thrown when the file can't be read or is not a recording
+     */
+    public Replay(File file) throws IOException {
+        // Map the file
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        }
+        // Check the header
+        if (buffer.capacity() < Recorder.HEADER_LENGTH || buffer.getInt(0) != Recorder.FILE_MAGIC || buffer.getInt(4) != Recorder.FORMAT)
+            throw new IOException("Not a recording");
+        // Find every intact frame
+        ArrayList<Frame> found = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        for (int offset = Recorder.HEADER_LENGTH; offset + Recorder.FRAME_HEADER_LENGTH + Recorder.CRC_LENGTH <= buffer.capacity(); offset += Recorder.ALIGNMENT) {
+            if (buffer.getInt(offset) != Recorder.FRAME_MAGIC)
+                continue;
+            int length = buffer.getInt(offset + 4);
+            if (length < Recorder.FRAME_HEADER_LENGTH + Recorder.CRC_LENGTH || length > buffer.capacity() - offset)
+                continue;
+            // Validate the checksum
+            ByteBuffer checksummed = buffer.duplicate();
+            checksummed.limit(offset + length - Recorder.CRC_LENGTH).position(offset);
+            crc.reset();
+            crc.update(checksummed);
+            if ((int) crc.getValue() != buffer.getInt(offset + length - Recorder.CRC_LENGTH))
+                continue;
+            found.add(new Frame(offset, buffer.getLong(offset + 8), buffer.getLong(offset + 16), buffer.get(offset + 24) != 0));
+            // Skip the frame's body
+            offset += (length - 1) / Recorder.ALIGNMENT * Recorder.ALIGNMENT;
+        }
+        found.sort((first, second) -> Long.compare(first.sequence, second.sequence));
+        // Keep the newest run of consecutive frames, starting at a keyframe
+        int first = found.size();
+        while (first > 0 && (first == found.size() || found.get(first - 1).sequence == found.get(first).sequence - 1))
+            first--;
+        while (first < found.size() && !found.get(first).keyframe)
+            first++;
+        frames.addAll(found.subList(first, found.size()));
+    }
+
+    /**
+     * Returns the ID of the recorded tree's root module.
+     *
+     * @return Root module ID
+     */
+    public String getRootID() {
+        // Read the first entry's path
+        if (frames.isEmpty() || buffer.getInt(frames.get(0).offset + Recorder.FRAME_HEADER_LENGTH - 4) == 0)
+            return DEFAULT_ROOT;
+        ByteBuffer entries = buffer.duplicate();
+        entries.position(frames.get(0).offset + Recorder.FRAME_HEADER_LENGTH);
+        String path = readString(entries, entries.getShort() & 0xFFFF);
+        int separator = path.indexOf(PATH_SEPARATOR);
+        return separator < 0 ? path : path.substring(0, separator);
+    }
+
+    /**
+     * Returns the timestamp of the first replayable frame.
+     *
+     * @return Epoch milliseconds, or 0 when there are no frames
+     */
+    public long getStart() {
+        return frames.isEmpty() ? 0 : frames.get(0).timestamp;
+    }
+
+    /**
+     * Returns the timestamp of the last frame.
+     *
+     * @return Epoch milliseconds, or 0 when there are no frames
+     */
+    public long getEnd() {
+        return frames.isEmpty() ? 0 : frames.get(frames.size() - 1).timestamp;
+    }
+
+    /**
+     * Rebuilds the telemetry JSON of the recorded tree's root, as it was at a given time.
+     *
+     * @param timestamp Epoch milliseconds
+     * @return Telemetry JSON
+     */
+    public String telemetry(long timestamp) {
+        // Find the last frame at that time
+        int last = -1;
+        while (last + 1 < frames.size() && frames.get(last + 1).timestamp <= timestamp)
+            last++;
+        // Find the keyframe before it
+        int first = Math.max(0, last);
+        while (first > 0 && !frames.get(first).keyframe)
+            first--;
+        // Apply the frames
+        LinkedHashMap<String, Object> root = new LinkedHashMap<>();
+        for (int index = first; index <= last; index++) {
+            Frame frame = frames.get(index);
+            if (frame.keyframe)
+                root.clear();
+            // Read the entries
+            ByteBuffer entries = buffer.duplicate();
+            entries.position(frame.offset + Recorder.FRAME_HEADER_LENGTH);
+            int count = buffer.getInt(frame.offset + Recorder.FRAME_HEADER_LENGTH - 4);
+            for (int entry = 0; entry < count; entry++) {
+                String path = readString(entries, entries.getShort() & 0xFFFF);
+                String name = readString(entries, entries.getShort() & 0xFFFF);
+                int length = entries.getInt();
+                String value = length == Recorder.CLEARED ? null : readString(entries, length);
+                // Find the module's object, relative to the root
+                int separator = path.indexOf(PATH_SEPARATOR);
+                Map<String, Object> module = module(root, separator < 0 ? "" : path.substring(separator + 1));
+                // Apply the value, without replacing a child module
+                if (value == null) {
+                    if (!(module.get(name) instanceof Map))
+                        module.remove(name);
+                } else if (!(module.get(name) instanceof Map)) {
+                    module.put(name, value);
+                }
+            }
+        }
+        // Write the JSON
+        return write(new StringBuilder(), root).toString();
+    }
+
+    /**
+     * Finds (or creates) the object of a module by its path relative to the root.
+     *
+     * @param root Root object
+     * @param path Relative path
+     * @return Module object
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> module(Map<String, Object> root, String path) {
+        Map<String, Object> current = root;
+        if (path.isEmpty())
+            return current;
+        for (String id : path.split("\\" + PATH_SEPARATOR)) {
+            Object child = current.get(id);
+            // Children shadow values of the same name
+            if (!(child instanceof Map)) {
+                child = new LinkedHashMap<String, Object>();
+                current.put(id, child);
+            }
+            current = (Map<String, Object>) child;
+        }
+        return current;
+    }
+
+    /**
+     * Writes a module object as JSON.
+     *
+     * @param builder Builder
+     * @param module  Module object
+     * @return Builder
+     */
+    @SuppressWarnings("unchecked")
+    private static StringBuilder write(StringBuilder builder, Map<String, Object> module) {
+        builder.append('{');
+        boolean written = false;
+        for (Map.Entry<String, Object> entry : module.entrySet()) {
+            if (written)
+                builder.append(',');
+            JSONBuilder.quote(builder, entry.getKey()).append(':');
+            // Values are stored as JSON already
+            if (entry.getValue() instanceof Map) {
+                write(builder, (Map<String, Object>) entry.getValue());
+            } else {
+                builder.append(entry.getValue());
+            }
+            written = true;
+        }
+        return builder.append('}');
+    }
+
+    /**
+     * Reads a UTF-8 string.
+     *
+     * @param buffer Buffer
+     * @param length String length in bytes
+     * @return String
+     */
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Prints the telemetry at a time, or serves the recording.
+     * <p>
+     * Only the telemetry is printed to the system output, diagnostics are logged to the system error stream.
+     *
+     * @param arguments Ring file, and either the time since the beginning of the recording in milliseconds, or "serve" and a port
+     * @throws IOException Thrown when the file can't be read
+     */
+    public static void main(String[] arguments) throws IOException {
+        // Keep the system output for the telemetry
+        Logger.setOutput(System.err);
+        if (arguments.length < 2) {
+            Logger.log(Logger.Level.ERROR, TAG, "Usage: Replay [file] [milliseconds] | Replay [file] serve [port]");
+            return;
+        }
+        Replay replay = new Replay(new File(arguments[0]));
+        Logger.log(TAG, "Loaded " + replay.frames.size() + " frames, spanning " + (replay.getEnd() - replay.getStart()) + "ms");
+        if (arguments[1].equals("serve")) {
+            Server.begin(arguments.length > 2 ? Integer.parseInt(arguments[2]) : 5800, new Player(replay));
+        } else {
+            System.out.println(replay.telemetry(replay.getStart() + Long.parseLong(arguments[1])));
+        }
+    }
+
+    /**
+     * This is a single intact frame.
+     */
+    private static class Frame {
+
+        private int offset;
+        private long sequence;
+        private long timestamp;
+        private boolean keyframe;
+
+        /**
+         * Default constructor.
+         *
+         * @param offset    Offset in the ring file
+         * @param sequence  Sequence number
+         * @param timestamp Epoch milliseconds
+         * @param keyframe  Whether the frame holds all values
+         */
+        private Frame(int offset, long sequence, long timestamp, boolean keyframe) {
+            this.offset = offset;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.keyframe = keyframe;
+        }
+    }
+
+    /**
+     * This is used to serve a recording through a {@link Server}, in place of the recorded tree's root module.
+     */
+    private static class Player extends Module {
+
+        // Replayed recording
+        private Replay replay;
+
+        // Playback state, where the replay time is position + (now - playedAt) * speed while playing
+        private long position;
+        private long playedAt = 0;
+        private double speed = 0;
+
+        /**
+         * Default constructor.
+         *
+         * @param replay Replayed recording
+         */
+        private Player(Replay replay) {
+            super(replay.getRootID());
+            this.replay = replay;
+            this.position = replay.getStart();
+            // Replace the telemetry with the recorded one
+            unregister("telemetry");
+            unregister("telemetry_delta");
+            register("telemetry", new Function() {
+                @Override
+                public Result execute(String parameter) throws Exception {
+                    return Result.finished(replay.telemetry(now()));
+                }
+            });
+            register("seek", new Function() {
+                @Override
+                public Result execute(String parameter) throws Exception {
+                    synchronized (Player.this) {
+                        position = replay.getStart() + Long.parseLong(parameter.trim());
+                        playedAt = System.currentTimeMillis();
+                    }
+                    return Result.finished("Seeked");
+                }
+            });
+            register("play", new Function() {
+                @Override
+                public Result execute(String parameter) throws Exception {
+                    synchronized (Player.this) {
+                        position = now();
+                        playedAt = System.currentTimeMillis();
+                        speed = parameter == null || parameter.isEmpty() ? 1 : Double.parseDouble(parameter.trim());
+                    }
+                    return Result.finished("Playing");
+                }
+            });
+            register("pause", new Function() {
+                @Override
+                public Result execute(String parameter) throws Exception {
+                    synchronized (Player.this) {
+                        position = now();
+                        speed = 0;
+                    }
+                    return Result.finished("Paused");
+                }
+            });
+            register("range", new Function() {
+                @Override
+                public Result execute(String parameter) throws Exception {
+                    return Result.finished(replay.getStart() + "," + replay.getEnd());
+                }
+            });
+        }
+
+        /**
+         * Calculates the current replay time.
+         *
+         * @return Epoch milliseconds
+         */
+        private synchronized long now() {
+            return Math.min(replay.getEnd(), position + (long) ((System.currentTimeMillis() - playedAt) * speed));
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Result;
+import com.ga2230.shleam.base.utils.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This is used to broadcast a module's telemetry over UDP, to any number of listeners, for the cost of a single
+ * serialization per period. Targets may be multicast groups (e.g. 239.22.30.1) or unicast addresses.
+ * <p>
+ * Every snapshot is a "[module path]:[telemetry]" payload (like a push), split into datagrams of at most
+ * {@link #DATAGRAM_SIZE} bytes, so that they are never fragmented by the network:
+ * <pre>
+ * Datagram: [int32 magic] [int64 sequence] [uint8 flags] [uint16 fragment index] [uint16 fragment count] [fragment]
+ * </pre>
+ * The sequence number grows by one per snapshot, and all fragments of a snapshot share it, so listeners can reassemble
+ * snapshots and drop incomplete ones. When compression is on, the payload is deflated (in the zlib format) before it is
+ * split, and the flags hold {@link #FLAG_DEFLATED}.
+ */
+public class Broadcaster {
+
+    // Log tag
+    private static final String TAG = "Broadcaster";
+
+    // Datagram layout
+    public static final int MAGIC = 0x53484c42;
+    public static final int DATAGRAM_SIZE = 1400;
+    public static final int FLAG_DEFLATED = 0x01;
+    private static final int HEADER_LENGTH = 4 + 8 + 1 + 2 + 2;
+    private static final int FRAGMENT_SIZE = DATAGRAM_SIZE - HEADER_LENGTH;
+    private static final int MAXIMUM_FRAGMENTS = 0xFFFF;
+
+    // Broadcast constants
+    private static final String OUTPUT_SEPARATOR = ":";
+    private static final String TELEMETRY = "telemetry";
+    private static final int MULTICAST_TTL = 1;
+
+    // Shared scheduler
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(Threads.named("Shleam-Broadcaster-"));
+
+    // Broadcast module
+    private Module module;
+
+    // Network channel and targets
+    private DatagramChannel channel;
+    private InetSocketAddress[] targets;
+
+    // Reusable datagram buffer
+    private ByteBuffer datagram = ByteBuffer.allocateDirect(DATAGRAM_SIZE);
+
+    // Compression state, created once compression is turned on
+    private volatile Compression compression = null;
+
+    // Broadcast state
+    private long sequence = 0;
+    private ScheduledFuture<?> task = null;
+
+    /**
+     * Default constructor.
+     *
+     * @param module  Broadcast module
+     * @param targets Multicast groups or unicast addresses
+     * @throws IOException Thrown when the channel can't be opened
+     */
+    public Broadcaster(Module module, InetSocketAddress... targets) throws IOException {
+        this.module = module;
+        this.targets = targets.clone();
+        // Open the channel, keeping multicast on the local network and looped back to local listeners
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        this.channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+        this.channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    }
+
+    /**
+     * Sets the network interface multicast datagrams are sent from (e.g. the loopback interface, for testing).
+     *
+     * @param networkInterface Network interface
+     * @throws IOException Thrown when the interface can't be used
+     */
+    public void setInterface(NetworkInterface networkInterface) throws IOException {
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+    }
+
+    /**
+     * Turns payload compression on or off.
+     *
+     * @param compressed Whether to deflate payloads
+     */
+    public synchronized void setCompressed(boolean compressed) {
+        if (compressed && compression == null) {
+            compression = new Compression();
+        } else if (!compressed && compression != null) {
+            compression.end();
+            compression = null;
+        }
+    }
+
+    /**
+     * Starts broadcasting a snapshot every period, replacing the previous period.
+     *
+     * @param period Period
+     * @param unit   Period unit
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        stop();
+        task = SCHEDULER.scheduleAtFixedRate(this::broadcast, 0, Math.max(1, period), unit);
+    }
+
+    /**
+     * Stops broadcasting.
+     */
+    public synchronized void stop() {
+        if (task != null)
+            task.cancel(false);
+        task = null;
+    }
+
+    /**
+     * Stops broadcasting and closes the channel.
+     */
+    public synchronized void close() {
+        stop();
+        setCompressed(false);
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Takes a snapshot and sends it to all targets. Called every period once started, but may be called manually too.
+     */
+    public synchronized void broadcast() {
+        try {
+            // Take the snapshot once
+            Result result = module.execute(TELEMETRY, null);
+            byte[] payload = (module.getPath() + OUTPUT_SEPARATOR + result.getResult()).getBytes(StandardCharsets.UTF_8);
+            // Deflate it if needed
+            byte flags = 0;
+            if (compression != null) {
+                byte[] deflated = compression.deflate(payload);
+                if (deflated != null && deflated.length < payload.length) {
+                    payload = deflated;
+                    flags |= FLAG_DEFLATED;
+                }
+            }
+            // Make sure it fits
+            int count = (payload.length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+            if (count > MAXIMUM_FRAGMENTS) {
+                Logger.log(Logger.Level.ERROR, TAG, "Snapshot of " + payload.length + " bytes is too large");
+                return;
+            }
+            // Send every fragment to every target, so that a failing target never keeps the snapshot from the others
+            int failed = 0;
+            IOException failure = null;
+            for (int index = 0; index < Math.max(1, count); index++) {
+                int offset = index * FRAGMENT_SIZE;
+                datagram.clear();
+                datagram.putInt(MAGIC).putLong(sequence).put(flags).putShort((short) index).putShort((short) Math.max(1, count));
+                datagram.put(payload, offset, Math.min(FRAGMENT_SIZE, payload.length - offset));
+                datagram.flip();
+                for (InetSocketAddress target : targets) {
+                    datagram.rewind();
+                    try {
+                        channel.send(datagram, target);
+                    } catch (IOException sendException) {
+                        failed++;
+                        failure = sendException;
+                    }
+                }
+            }
+            sequence++;
+            // Report failed datagrams once per snapshot
+            if (failure != null)
+                Logger.log(Logger.Level.WARNING, TAG, failed + " datagrams could not be sent: " + failure);
+        } catch (Exception e) {
+            Logger.log(Logger.Level.ERROR, TAG, e.toString());
+        }
+    }
+}
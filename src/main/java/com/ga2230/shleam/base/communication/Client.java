@@ -6,106 +6,155 @@
 package com.ga2230.shleam.base.communication;
 
 import com.ga2230.shleam.base.structure.Module;
-import com.ga2230.shleam.base.structure.Result;
 import com.ga2230.shleam.base.utils.Logger;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.Base64;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * This is used to handle incoming clients and serve them content.
  */
-class Client {
+class Client implements Transport, Runnable {
 
     // Log tag
     private static final String TAG = "Client";
 
     // Client constants
-    private static final String ARGUMENT_SEPARATOR = " ";
-    private static final String OUTPUT_SEPARATOR = ":";
-    private static final String BASE64_SEPARATOR = "base64:";
+    private static final int BUFFER_SIZE = 8192;
 
     // Alive state
-    private boolean listening = true;
+    private volatile boolean listening = true;
+
+    // Call handling
+    private Session session;
 
     // Socket I/O
-    private BufferedReader reader;
-    private BufferedWriter writer;
+    private Socket socket;
+    private InputStream reader;
+    private OutputStream writer;
+
+    // Executor running the pusher task
+    private ExecutorService pushers;
+
+    // Pushed frames, written by a separate task so that a slow client never blocks the publisher
+    private BlockingQueue<Subscription> pushes = new LinkedBlockingQueue<>();
+    private Future<?> pusher = null;
 
     /**
      * Default constructor.
-     * @param socket Network socket
-     * @param parent Module
+     *
+     * @param socket  Network socket
+     * @param parent  Module
+     * @param workers Executor for running tagged calls
+     * @param pushers Executor for running the pusher task
+     * @throws IOException Thrown when the socket's streams can't be opened
      */
-    public Client(Socket socket, Module parent) {
+    Client(Socket socket, Module parent, Executor workers, ExecutorService pushers) throws IOException {
+        this.socket = socket;
+        this.pushers = pushers;
+        // Setup the session
+        this.session = new Session(parent, this, workers);
+        // Send responses right away
+        socket.setTcpNoDelay(true);
         // Setup I/O
+        this.reader = socket.getInputStream();
+        this.writer = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Serves the connection until it closes, blocking on reads (so an idle connection costs nothing but its thread).
+     */
+    @Override
+    public void run() {
         try {
-            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        } catch (IOException e) {
-            this.reader = null;
-            this.writer = null;
+            // Reusable input buffer
+            byte[] buffer = new byte[BUFFER_SIZE];
+            // Begin listening for function calls
+            while (this.listening) {
+                // Wait for the received bytes
+                int read = this.reader.read(buffer);
+                // Check whether the peer closed the connection
+                if (read < 0)
+                    break;
+                // Parse, execute and respond
+                session.receive(ByteBuffer.wrap(buffer, 0, read));
+            }
+        } catch (Exception e) {
+            Logger.log(Logger.Level.WARNING, TAG, e.toString());
         } finally {
-            // Make sure we are connected to a good client
-            if (this.reader != null && this.writer != null) {
-                // Start a new thread
-                new Thread(() -> {
+            close();
+        }
+    }
+
+    /**
+     * Ends the session, stops the pusher and closes the socket.
+     */
+    void close() {
+        listening = false;
+        // End the session
+        session.close();
+        synchronized (this) {
+            if (pusher != null)
+                pusher.cancel(true);
+        }
+        try {
+            socket.close();
+        } catch (Exception e) {
+            Logger.log(Logger.Level.WARNING, TAG, e.toString());
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer response) {
+        send(response.array(), response.arrayOffset() + response.position(), response.remaining());
+    }
+
+    @Override
+    public void send(byte[] response, int length) {
+        send(response, 0, length);
+    }
+
+    /**
+     * Writes a response to the socket, before returning.
+     *
+     * @param response Response buffer
+     * @param offset   Response offset
+     * @param length   Response length
+     */
+    private void send(byte[] response, int offset, int length) {
+        synchronized (this.writer) {
+            try {
+                writer.write(response, offset, length);
+                writer.flush();
+            } catch (IOException e) {
+                Logger.log(Logger.Level.WARNING, TAG, e.toString());
+            }
+        }
+    }
+
+    @Override
+    public void push(Subscription subscription) {
+        pushes.add(subscription);
+        // Start the pusher on the first push
+        synchronized (this) {
+            if (pusher == null && listening) {
+                pusher = pushers.submit(() -> {
                     try {
-                        // Begin listening for function calls
                         while (this.listening) {
-                            // Make sure the reader is ready
-                            if (this.reader.ready()) {
-                                // Read the received line
-                                String received = this.reader.readLine();
-                                // Parse the information
-                                String parsed = received;
-                                // Check if the information is base64 encoded or not and decode it accordingly
-                                boolean isBase64 = received.startsWith(BASE64_SEPARATOR);
-                                // Decode base64
-                                if (isBase64) {
-                                    parsed = new String(Base64.getDecoder().decode(received.substring(BASE64_SEPARATOR.length())));
-                                }
-                                Result result = null;
-                                // Try parsing even further
-                                try {
-                                    // Call parsing
-                                    String[] moduleID = parsed.split(ARGUMENT_SEPARATOR, 2);
-                                    String[] functionCall = moduleID[1].split(ARGUMENT_SEPARATOR, 2);
-                                    // Module lookup
-                                    Module module = parent.descendant(moduleID[0]);
-                                    // Make sure the module exists
-                                    if (module != null) {
-                                        // Execute the call
-                                        result = module.execute(functionCall[0], functionCall.length > 1 ? functionCall[1] : null);
-                                    } else {
-                                        result = Result.notFinished("Module not found");
-                                    }
-                                } catch (Exception thrownException) {
-                                    // Create a failure result
-                                    result = Result.notFinished(thrownException.toString());
-                                }
-                                if (result != null) {
-                                    writer.write(String.valueOf(result.isFinished()));
-                                    writer.write(OUTPUT_SEPARATOR);
-                                    writer.write(isBase64 ? new String(Base64.getEncoder().encode(result.getResult().getBytes())) : result.getResult());
-                                }
-                                writer.newLine();
-                                writer.flush();
-                            }
-                            Thread.sleep(10);
+                            // Wait for a frame and write it
+                            ByteBuffer frame = pushes.take().take();
+                            if (frame != null)
+                                send(frame);
                         }
-                    } catch (Exception e) {
-                        Logger.log(TAG, e.toString());
+                    } catch (InterruptedException ignored) {
                     }
-
-                    try {
-                        socket.close();
-                    } catch (Exception e) {
-                        Logger.log(TAG, e.toString());
-                    }
-
-                }).start();
+                });
             }
         }
     }
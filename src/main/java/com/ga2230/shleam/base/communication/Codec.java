@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This is used to encode and decode UTF-8 and base64 straight into caller-owned arrays, without allocating.
+ * Encoding and decoding match {@link String#getBytes} and {@link java.util.Base64}'s basic encoder and decoder.
+ */
+abstract class Codec {
+
+    // Base64 alphabet and padding
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte PADDING = '=';
+
+    // Base64 value of every byte, or -1 when it is not in the alphabet
+    private static final int[] VALUES = new int[256];
+
+    // Replacement for unpaired surrogates
+    private static final byte REPLACEMENT = '?';
+
+    static {
+        // Create the reverse alphabet
+        Arrays.fill(VALUES, -1);
+        for (int index = 0; index < ALPHABET.length; index++) {
+            VALUES[ALPHABET[index]] = index;
+        }
+    }
+
+    /**
+     * Calculates the maximum length of a string encoded as UTF-8.
+     *
+     * @param length String length in characters
+     * @return Maximum length in bytes
+     */
+    static int maximumUTF8Length(int length) {
+        return length * 3;
+    }
+
+    /**
+     * Calculates the length of an encoded base64 payload.
+     *
+     * @param length Payload length in bytes
+     * @return Encoded length in bytes
+     */
+    static int base64Length(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Encodes a string as UTF-8. The output must have room for {@link #maximumUTF8Length(int)} bytes.
+     *
+     * @param string String
+     * @param output Output array
+     * @param offset Output offset
+     * @return Output offset after the encoded string
+     */
+    static int encodeUTF8(String string, byte[] output, int offset) {
+        int length = string.length();
+        for (int index = 0; index < length; index++) {
+            char current = string.charAt(index);
+            if (current < 0x80) {
+                output[offset++] = (byte) current;
+            } else if (current < 0x800) {
+                output[offset++] = (byte) (0xC0 | (current >> 6));
+                output[offset++] = (byte) (0x80 | (current & 0x3F));
+            } else if (Character.isSurrogate(current)) {
+                // Encode surrogate pairs as a single code point
+                if (Character.isHighSurrogate(current) && index + 1 < length && Character.isLowSurrogate(string.charAt(index + 1))) {
+                    int codePoint = Character.toCodePoint(current, string.charAt(++index));
+                    output[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                    output[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    output[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    output[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    output[offset++] = REPLACEMENT;
+                }
+            } else {
+                output[offset++] = (byte) (0xE0 | (current >> 12));
+                output[offset++] = (byte) (0x80 | ((current >> 6) & 0x3F));
+                output[offset++] = (byte) (0x80 | (current & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Encodes bytes as padded base64. The output must have room for {@link #base64Length(int)} bytes.
+     *
+     * @param input        Input array
+     * @param offset       Input offset
+     * @param length       Input length
+     * @param output       Output array
+     * @param outputOffset Output offset
+     * @return Output offset after the encoded bytes
+     */
+    static int encodeBase64(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        int end = offset + length;
+        // Encode whole groups of 3 bytes
+        while (end - offset >= 3) {
+            int bits = (input[offset++] & 0xFF) << 16 | (input[offset++] & 0xFF) << 8 | (input[offset++] & 0xFF);
+            output[outputOffset++] = ALPHABET[bits >>> 18];
+            output[outputOffset++] = ALPHABET[(bits >>> 12) & 0x3F];
+            output[outputOffset++] = ALPHABET[(bits >>> 6) & 0x3F];
+            output[outputOffset++] = ALPHABET[bits & 0x3F];
+        }
+        // Encode the rest, with padding
+        if (end - offset == 1) {
+            int bits = (input[offset] & 0xFF) << 16;
+            output[outputOffset++] = ALPHABET[bits >>> 18];
+            output[outputOffset++] = ALPHABET[(bits >>> 12) & 0x3F];
+            output[outputOffset++] = PADDING;
+            output[outputOffset++] = PADDING;
+        } else if (end - offset == 2) {
+            int bits = (input[offset] & 0xFF) << 16 | (input[offset + 1] & 0xFF) << 8;
+            output[outputOffset++] = ALPHABET[bits >>> 18];
+            output[outputOffset++] = ALPHABET[(bits >>> 12) & 0x3F];
+            output[outputOffset++] = ALPHABET[(bits >>> 6) & 0x3F];
+            output[outputOffset++] = PADDING;
+        }
+        return outputOffset;
+    }
+
+    /**
+     * Decodes base64, with optional padding. The output must have room for 3 bytes per 4 input bytes, and may be the
+     * input array itself, as long as the output offset is not after the input offset.
+     *
+     * @param input        Input array
+     * @param offset       Input offset
+     * @param length       Input length
+     * @param output       Output array
+     * @param outputOffset Output offset
+     * @return Output offset after the decoded bytes, or -1 when the input is malformed
+     */
+    static int decodeBase64(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        int end = offset + length;
+        int bits = 0;
+        int count = 0;
+        // Decode until the end or the padding
+        for (; offset < end && input[offset] != PADDING; offset++) {
+            int value = VALUES[input[offset] & 0xFF];
+            if (value < 0)
+                return -1;
+            bits = bits << 6 | value;
+            // Write every complete group of 4 characters
+            if (++count == 4) {
+                output[outputOffset++] = (byte) (bits >> 16);
+                output[outputOffset++] = (byte) (bits >> 8);
+                output[outputOffset++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        // Make sure the padding completes the last group
+        int padding = end - offset;
+        for (; offset < end; offset++) {
+            if (input[offset] != PADDING)
+                return -1;
+        }
+        if (count == 1 || (padding > 0 && (count < 2 || count + padding != 4)))
+            return -1;
+        // Write the last partial group
+        if (count == 2) {
+            output[outputOffset++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            output[outputOffset++] = (byte) (bits >> 10);
+            output[outputOffset++] = (byte) (bits >> 2);
+        }
+        return outputOffset;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This is used to deflate and inflate payloads (in the zlib format) with a reusable {@link Deflater}, {@link Inflater}
+ * and buffer. It is safe to use from any thread, one payload at a time.
+ */
+class Compression {
+
+    // Compression constants
+    private static final int BUFFER_SIZE = 8192;
+
+    // Native compression state, released by end()
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+
+    // Reusable output buffer
+    private byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Deflates a payload.
+     *
+     * @param payload Payload
+     * @return Deflated payload, or null once ended
+     */
+    synchronized byte[] deflate(byte[] payload) {
+        if (deflater == null)
+            return null;
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        // Deflate into the reusable buffer, growing it as needed
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Inflates a UTF-8 payload.
+     *
+     * @param input  Input array
+     * @param offset Deflated payload offset
+     * @param length Deflated payload length
+     * @param limit  Maximum inflated length in bytes
+     * @return Inflated payload
+     * @throws DataFormatException Thrown when the payload is malformed, truncated or too long
+     */
+    synchronized String inflate(byte[] input, int offset, int length, int limit) throws DataFormatException {
+        if (inflater == null)
+            throw new DataFormatException("Compression ended");
+        inflater.reset();
+        inflater.setInput(input, offset, length);
+        // Inflate into the reusable buffer, growing it up to the limit
+        int inflatedLength = 0;
+        while (!inflater.finished()) {
+            if (inflatedLength == buffer.length) {
+                if (buffer.length >= limit)
+                    throw new DataFormatException("Inflated payload is longer than " + limit + " bytes");
+                buffer = Arrays.copyOf(buffer, (int) Math.min(limit, buffer.length * 2L));
+            }
+            int inflated = inflater.inflate(buffer, inflatedLength, buffer.length - inflatedLength);
+            // Make sure the payload is complete
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                throw new DataFormatException("Truncated payload");
+            inflatedLength += inflated;
+        }
+        return new String(buffer, 0, inflatedLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Releases the native compression state. Payloads can't be deflated or inflated afterwards.
+     */
+    synchronized void end() {
+        if (deflater == null)
+            return;
+        deflater.end();
+        inflater.end();
+        deflater = null;
+        inflater = null;
+    }
+}
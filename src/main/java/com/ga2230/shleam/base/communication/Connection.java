@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import com.ga2230.shleam.base.structure.Module;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This is used to hold the state of a single non-blocking connection served by a {@link Reactor}.
+ */
+class Connection implements Transport {
+
+    // Connection constants
+    private static final int BUFFER_SIZE = 8192;
+
+    // Network channel
+    private SocketChannel channel;
+
+    // Owning event loop
+    private Reactor reactor;
+
+    // Registration key
+    private SelectionKey key;
+
+    // Call handling
+    private Session session;
+
+    // Incoming data
+    private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+    // Outgoing data
+    private ByteBuffer staging = ByteBuffer.allocate(BUFFER_SIZE);
+    private Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+    private Queue<Subscription> pushes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Default constructor.
+     *
+     * @param channel Network channel
+     * @param reactor Owning event loop
+     * @param parent  Module
+     */
+    Connection(SocketChannel channel, Reactor reactor, Module parent) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.session = new Session(parent, this);
+    }
+
+    /**
+     * Key setter, called once the channel is registered with the reactor's selector.
+     *
+     * @param key Registration key
+     */
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Reads everything available from the channel and passes it to the session.
+     *
+     * @throws IOException Thrown exception
+     */
+    void read() throws IOException {
+        int read = 0;
+        // Read until the channel is drained
+        while (channel.isOpen() && (read = channel.read(input)) > 0) {
+            // Hand the received bytes over
+            input.flip();
+            session.receive(input);
+            input.clear();
+        }
+        // Check whether the peer closed the connection
+        if (read < 0)
+            close();
+    }
+
+    @Override
+    public void send(ByteBuffer response) {
+        synchronized (output) {
+            output.add(response);
+        }
+        reactor.flush(this);
+    }
+
+    @Override
+    public void send(byte[] response, int length) {
+        // Write straight to the channel when nothing is queued before the response (only the event loop may write)
+        if (reactor.isCurrent() && length <= staging.capacity()) {
+            // Hold the queue while writing, so that no other response is queued before the rest of this one
+            synchronized (output) {
+                if (output.isEmpty()) {
+                    staging.clear();
+                    staging.put(response, 0, length);
+                    staging.flip();
+                    try {
+                        channel.write(staging);
+                    } catch (IOException e) {
+                        close();
+                        return;
+                    }
+                    // Check whether the channel is full
+                    if (!staging.hasRemaining())
+                        return;
+                    // Queue the rest
+                    output.add(ByteBuffer.wrap(Arrays.copyOfRange(staging.array(), staging.position(), staging.limit())));
+                } else {
+                    output.add(ByteBuffer.wrap(Arrays.copyOf(response, length)));
+                }
+            }
+            reactor.flush(this);
+            return;
+        }
+        // Queue a copy
+        send(ByteBuffer.wrap(Arrays.copyOf(response, length)));
+    }
+
+    @Override
+    public void push(Subscription subscription) {
+        pushes.add(subscription);
+        reactor.flush(this);
+    }
+
+    /**
+     * Writes as much of the queued output as the channel accepts, and updates the write interest accordingly.
+     * Pushed frames are only taken once all previous output was written, so that a slow connection only gets the latest one.
+     *
+     * @throws IOException Thrown exception
+     */
+    void write() throws IOException {
+        ByteBuffer buffer;
+        Subscription subscription;
+        while (true) {
+            // Write until the queue is empty or the channel is full
+            while ((buffer = output.peek()) != null) {
+                channel.write(buffer);
+                // Check whether the channel is full
+                if (buffer.hasRemaining())
+                    break;
+                output.poll();
+            }
+            // Take a pushed frame if there is room for it
+            if (!output.isEmpty() || (subscription = pushes.poll()) == null)
+                break;
+            if ((buffer = subscription.take()) != null)
+                output.add(buffer);
+        }
+        // Only listen for writability while there is something left to write
+        if (key != null && key.isValid()) {
+            if (output.isEmpty() && pushes.isEmpty())
+                key.interestOps(SelectionKey.OP_READ);
+            else
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Closes the connection.
+     */
+    void close() {
+        // End the session
+        session.close();
+        // Cancel the registration
+        if (key != null)
+            key.cancel();
+        // Close the channel
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
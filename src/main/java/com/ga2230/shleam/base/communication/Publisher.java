@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Result;
+import com.ga2230.shleam.base.utils.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This is used to push a module's telemetry to all of its subscribers at a fixed rate.
+ * The telemetry is taken and encoded once per tick, and the same frame is shared by all subscribers.
+ */
+class Publisher {
+
+    // Log tag
+    private static final String TAG = "Publisher";
+
+    // Publisher constants
+    private static final String PUSH_PREFIX = "push:";
+    private static final String OUTPUT_SEPARATOR = ":";
+    private static final String TELEMETRY = "telemetry";
+    private static final long MINIMUM_PERIOD = 10;
+
+    // Shared scheduler
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Shleam-Publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Active publishers
+    private static final ArrayList<Publisher> PUBLISHERS = new ArrayList<>();
+
+    // Published module
+    private Module module;
+
+    // Published module's name, as requested by the subscribers
+    private String name;
+
+    // Period in milliseconds
+    private long period;
+
+    // Whether frames are only published when something changed
+    private boolean onChange;
+
+    // Last published version
+    private long version = -1;
+
+    // Subscribers
+    private List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    // Scheduled task
+    private ScheduledFuture<?> task;
+
+    // Compression state for sessions that negotiated it, created once needed
+    private Compression compression = null;
+
+    /**
+     * Default constructor.
+     *
+     * @param module   Published module
+     * @param name     Published module's name
+     * @param period   Period in milliseconds
+     * @param onChange Whether to only publish when something changed
+     */
+    private Publisher(Module module, String name, long period, boolean onChange) {
+        this.module = module;
+        this.name = name;
+        this.period = period;
+        this.onChange = onChange;
+        this.task = SCHEDULER.scheduleAtFixedRate(this::tick, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscribes a session to a module's telemetry, sharing a publisher with all other sessions of the same module, name,
+     * period and mode.
+     *
+     * @param session  Session
+     * @param module   Module
+     * @param name     Module name
+     * @param period   Period in milliseconds
+     * @param onChange Whether to only publish when something changed
+     * @return Subscription
+     */
+    static Subscription subscribe(Session session, Module module, String name, long period, boolean onChange) {
+        // Clamp the period
+        period = Math.max(MINIMUM_PERIOD, period);
+        synchronized (PUBLISHERS) {
+            // Find or create the publisher
+            Publisher publisher = null;
+            for (Publisher existing : PUBLISHERS) {
+                if (existing.module == module && existing.name.equals(name) && existing.period == period && existing.onChange == onChange)
+                    publisher = existing;
+            }
+            if (publisher == null)
+                PUBLISHERS.add(publisher = new Publisher(module, name, period, onChange));
+            // Add the subscription
+            Subscription subscription = new Subscription(session, publisher);
+            publisher.subscriptions.add(subscription);
+            return subscription;
+        }
+    }
+
+    /**
+     * Removes a subscription, and stops the publisher once it has no more subscribers.
+     *
+     * @param subscription Subscription
+     */
+    static void unsubscribe(Subscription subscription) {
+        Publisher publisher = subscription.getPublisher();
+        synchronized (PUBLISHERS) {
+            publisher.subscriptions.remove(subscription);
+            // Stop the publisher
+            if (publisher.subscriptions.isEmpty()) {
+                publisher.task.cancel(false);
+                PUBLISHERS.remove(publisher);
+                // Release the compression state
+                synchronized (publisher) {
+                    if (publisher.compression != null)
+                        publisher.compression.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * Getter for module.
+     *
+     * @return The published module
+     */
+    Module getModule() {
+        return module;
+    }
+
+    /**
+     * Encodes a deflated snapshot for each framing, or keeps the plain frames when deflating does not make it shorter.
+     *
+     * @param payload Snapshot
+     * @param text    Plain frame for text mode sessions
+     * @param binary  Plain frame for binary mode sessions
+     * @return Frames for text and binary mode sessions
+     */
+    private synchronized ByteBuffer[] deflate(byte[] payload, ByteBuffer text, ByteBuffer binary) {
+        if (compression == null)
+            compression = new Compression();
+        byte[] deflated = compression.deflate(payload);
+        if (deflated == null || deflated.length >= payload.length)
+            return new ByteBuffer[]{text, binary};
+        return new ByteBuffer[]{
+                Session.encodeLine(PUSH_PREFIX + Session.DEFLATE_SEPARATOR, Base64.getEncoder().encode(deflated)),
+                Session.encodeFrame(0, (byte) (Session.STATUS_PUSH | Session.STATUS_DEFLATED), deflated)
+        };
+    }
+
+    /**
+     * Takes a snapshot and offers it to all subscribers.
+     */
+    private void tick() {
+        try {
+            // Skip the tick when nothing in the published module changed (reading the version first, so that nothing
+            // changed meanwhile is missed next time)
+            long current = Module.getVersion();
+            if (onChange && version >= 0 && !module.hasChangedSince(version))
+                return;
+            version = current;
+            // Take the snapshot once
+            Result result = module.execute(TELEMETRY, null);
+            byte[] payload = (name + OUTPUT_SEPARATOR + result.getResult()).getBytes(StandardCharsets.UTF_8);
+            // Encode it once for each framing
+            ByteBuffer text = Session.encodeLine(PUSH_PREFIX, payload);
+            ByteBuffer binary = Session.encodeFrame(0, Session.STATUS_PUSH, payload);
+            // Offer it to every subscriber, deflating it once for those that negotiated compression
+            ByteBuffer[] deflated = null;
+            for (Subscription subscription : subscriptions) {
+                if (subscription.getSession().isCompressing(payload.length)) {
+                    if (deflated == null)
+                        deflated = deflate(payload, text, binary);
+                    subscription.offer(deflated[0], deflated[1]);
+                } else {
+                    subscription.offer(text, binary);
+                }
+            }
+        } catch (Exception e) {
+            Logger.log(Logger.Level.ERROR, TAG, e.toString());
+        }
+    }
+}
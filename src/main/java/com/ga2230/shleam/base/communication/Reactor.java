@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.utils.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This is used to serve many non-blocking connections on a single event-loop thread.
+ */
+class Reactor implements Runnable {
+
+    // Log tag
+    private static final String TAG = "Reactor";
+
+    // Alive state
+    private volatile boolean listening = true;
+
+    // Event selector
+    private Selector selector;
+
+    // Parent module for running calls on
+    private Module parent;
+
+    // Event-loop thread
+    private Thread thread;
+
+    // Work handed over from other threads
+    private Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    private Queue<Connection> flushes = new ConcurrentLinkedQueue<>();
+
+    // Reactors to hand accepted channels to (only set for the accepting reactor)
+    private Reactor[] group = null;
+    private int next = 0;
+
+    /**
+     * Default constructor.
+     *
+     * @param name   Thread name
+     * @param parent Module
+     * @throws IOException Thrown exception
+     */
+    Reactor(String name, Module parent) throws IOException {
+        this.parent = parent;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    /**
+     * Makes this reactor accept new connections from the given server channel and spread them across the group.
+     *
+     * @param server Server channel
+     * @param group  Reactors to hand connections to
+     * @throws IOException Thrown exception
+     */
+    void accept(ServerSocketChannel server, Reactor[] group) throws IOException {
+        this.group = group;
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts the event-loop thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the event-loop thread.
+     */
+    void stop() {
+        listening = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a newly accepted channel to this reactor.
+     *
+     * @param channel Accepted channel
+     */
+    void register(SocketChannel channel) {
+        registrations.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Checks whether the caller runs on this reactor's event-loop thread.
+     *
+     * @return Whether the current thread is the event-loop thread
+     */
+    boolean isCurrent() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Writes a connection's pending output, either immediately (on the event-loop thread) or on the next loop.
+     *
+     * @param connection Connection
+     */
+    void flush(Connection connection) {
+        if (isCurrent()) {
+            try {
+                connection.write();
+            } catch (IOException e) {
+                connection.close();
+            }
+        } else {
+            flushes.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (listening) {
+            try {
+                // Block until something happens
+                selector.select();
+                // Register handed-over channels
+                SocketChannel channel;
+                while ((channel = registrations.poll()) != null) {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(channel, this, parent);
+                    connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+                }
+                // Write handed-over output
+                Connection connection;
+                while ((connection = flushes.poll()) != null) {
+                    flush(connection);
+                }
+                // Handle ready keys
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    // Make sure the key was not cancelled meanwhile
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        handleAccept((ServerSocketChannel) key.channel());
+                    } else {
+                        handleConnection((Connection) key.attachment(), key);
+                    }
+                }
+            } catch (Exception e) {
+                Logger.log(Logger.Level.WARNING, TAG, e.toString());
+            }
+        }
+        // Close everything
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            Logger.log(Logger.Level.WARNING, TAG, e.toString());
+        }
+    }
+
+    /**
+     * Accepts all pending connections and hands them to the group in a round-robin manner.
+     *
+     * @param server Server channel
+     * @throws IOException Thrown exception
+     */
+    private void handleAccept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            // Disable Nagle's algorithm, responses are small and latency sensitive
+            channel.socket().setTcpNoDelay(true);
+            // Pick a reactor
+            group[next].register(channel);
+            next = (next + 1) % group.length;
+        }
+    }
+
+    /**
+     * Handles a ready connection.
+     *
+     * @param connection Connection
+     * @param key        Selection key
+     */
+    private void handleConnection(Connection connection, SelectionKey key) {
+        try {
+            if (key.isWritable())
+                connection.write();
+            if (key.isValid() && key.isReadable())
+                connection.read();
+        } catch (IOException | RuntimeException e) {
+            // Drop the connection, since its unread input can't be handled
+            Logger.log(Logger.Level.WARNING, TAG, e.toString());
+            connection.close();
+        }
+    }
+}
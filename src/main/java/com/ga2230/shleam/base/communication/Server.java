@@ -8,55 +8,194 @@ package com.ga2230.shleam.base.communication;
 import com.ga2230.shleam.base.structure.Module;
 import com.ga2230.shleam.base.utils.Logger;
 
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.util.ArrayList;
-
-import static java.lang.Thread.sleep;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This is used to run the TCP/IP server for handling function calls.
  */
 public abstract class Server {
 
+    /**
+     * The connection handling modes of the server.
+     */
+    public enum Mode {
+        /**
+         * All connections are served by a few non-blocking event-loop threads.
+         */
+        SELECTOR,
+        /**
+         * Every connection is served by its own thread, from a bounded pool of platform threads. Connections beyond the pool's size are closed.
+         */
+        THREADED,
+        /**
+         * Every connection is served by its own virtual thread (Java 21 and up), or like {@link #THREADED} when virtual threads are not available.
+         */
+        VIRTUAL
+    }
+
     // Log tag
     private static final String TAG = "Server";
 
+    // Amount of event-loop threads in selector mode
+    private static final int REACTORS = Math.max(1, Math.min(4, java.lang.Runtime.getRuntime().availableProcessors() / 2));
+
+    // Maximum amount of connections in threaded mode, each served by its own platform thread (connections beyond it are closed)
+    private static final int CONNECTION_THREADS = 64;
+
+    // Maximum amount of platform threads executing tagged calls in threaded mode (beyond it, calls run on the connection's thread)
+    private static final int WORKER_THREADS = 64;
+
+    // Thread names
+    private static final String THREAD_ACCEPTOR = "Shleam-Acceptor";
+    private static final String THREAD_CONNECTION = "Shleam-Connection-";
+    private static final String THREAD_WORKER = "Shleam-Connection-Worker-";
+    private static final String THREAD_PUSHER = "Shleam-Pusher-";
+
     // Alive state
-    private static boolean listening = true;
+    private static volatile boolean listening = true;
 
     // Accepting socket
     private static ServerSocket server = null;
 
-    // Clients array
-    private static ArrayList<Client> clients = null;
+    // Connected clients
+    private static Set<Client> clients = null;
+
+    // Event loops
+    private static Reactor[] reactors = null;
 
     /**
-     * Starts the Shleam server on the provided port with the provided parent as its module.
+     * Starts the Shleam server on the provided port with the provided parent as its module, in selector mode.
      *
      * @param port   Port
      * @param parent Module
      */
     public static void begin(int port, Module parent) {
+        begin(port, parent, Mode.SELECTOR);
+    }
+
+    /**
+     * Starts the Shleam server on the provided port with the provided parent as its module.
+     *
+     * @param port   Port
+     * @param parent Module
+     * @param mode   Connection handling mode
+     */
+    public static void begin(int port, Module parent, Mode mode) {
+        if (mode == Mode.SELECTOR) {
+            beginSelector(port, parent);
+        } else {
+            // Prefer virtual threads when requested and available
+            ExecutorService executor = mode == Mode.VIRTUAL ? Threads.virtual(THREAD_CONNECTION) : null;
+            if (executor != null) {
+                beginThreaded(port, parent, executor, executor, executor);
+            } else {
+                // Keep connections, tagged calls and pushers apart, so that none of them starves the others (there is at most one pusher per connection)
+                beginThreaded(port, parent, Threads.bounded(THREAD_CONNECTION, CONNECTION_THREADS), Threads.bounded(THREAD_WORKER, WORKER_THREADS), Executors.newCachedThreadPool(Threads.named(THREAD_PUSHER)));
+            }
+        }
+    }
+
+    /**
+     * Starts the Shleam server on the provided port with the provided parent as its module, serving every connection
+     * on a thread of the given executor, with blocking reads. Tagged calls and pushes run on the same executor, so it
+     * should not queue tasks behind connections: connections it rejects are closed, and tagged calls it rejects run on
+     * the connection's thread.
+     *
+     * @param port     Port
+     * @param parent   Module
+     * @param executor Executor for the connections' threads
+     */
+    public static void begin(int port, Module parent, ExecutorService executor) {
+        beginThreaded(port, parent, executor, executor, executor);
+    }
+
+    /**
+     * Starts the server in selector mode.
+     *
+     * @param port   Port
+     * @param parent Module
+     */
+    private static void beginSelector(int port, Module parent) {
+        try {
+            // Open the accepting channel
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(port));
+            // Create the event loops
+            Server.reactors = new Reactor[REACTORS];
+            for (int index = 0; index < REACTORS; index++) {
+                Server.reactors[index] = new Reactor("Shleam-Reactor-" + index, parent);
+            }
+            // The first event loop accepts connections for the whole group
+            Server.reactors[0].accept(channel, Server.reactors);
+            // Start the event loops
+            for (Reactor reactor : Server.reactors) {
+                reactor.start();
+            }
+        } catch (Exception e) {
+            Logger.log(Logger.Level.ERROR, TAG, e.toString());
+        }
+    }
+
+    /**
+     * Starts the server in threaded mode.
+     *
+     * @param port     Port
+     * @param parent   Module
+     * @param executor Executor for the connections' threads
+     * @param workers  Executor for tagged calls
+     * @param pushers  Executor for the connections' pusher tasks
+     */
+    private static void beginThreaded(int port, Module parent, ExecutorService executor, ExecutorService workers, ExecutorService pushers) {
         try {
-            Server.clients = new ArrayList<>();
+            Server.clients = ConcurrentHashMap.newKeySet();
             Server.server = new ServerSocket(port);
             // Listen on new thread
-            new Thread(() -> {
+            Thread acceptor = new Thread(() -> {
                 while (Server.listening) {
+                    Socket socket = null;
                     try {
                         // Add client
-                        Server.clients.add(new Client(Server.server.accept(), parent));
-                        // Sleep for one second
-                        sleep(1000);
+                        socket = Server.server.accept();
+                        Client client = new Client(socket, parent, workers, pushers);
+                        Server.clients.add(client);
+                        // Serve the client, and forget it once it disconnects
+                        try {
+                            executor.execute(() -> {
+                                try {
+                                    client.run();
+                                } finally {
+                                    Server.clients.remove(client);
+                                }
+                            });
+                        } catch (RejectedExecutionException rejectedException) {
+                            // Refuse the connection instead of leaving it waiting for a thread
+                            Logger.log(Logger.Level.WARNING, TAG, "Connection limit reached, closing " + socket.getRemoteSocketAddress());
+                            Server.clients.remove(client);
+                            client.close();
+                        }
                     } catch (Exception e) {
-                        Logger.log(TAG, e.toString());
+                        Logger.log(Logger.Level.ERROR, TAG, e.toString());
+                        // Drop a connection that could not be served
+                        try {
+                            if (socket != null)
+                                socket.close();
+                        } catch (Exception ignored) {
+                        }
                     }
                 }
-            }).start();
+            }, THREAD_ACCEPTOR);
+            acceptor.start();
         } catch (Exception e) {
-            Logger.log(TAG, e.toString());
+            Logger.log(Logger.Level.ERROR, TAG, e.toString());
         }
     }
 
-
 }
@@ -0,0 +1,1000 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import com.ga2230.shleam.base.structure.AsyncFunction;
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Result;
+import com.ga2230.shleam.base.utils.JSONBuilder;
+import com.ga2230.shleam.base.utils.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+
+/**
+ * This is used to parse and execute the calls received by a single connection, regardless of its transport.
+ * <p>
+ * A session starts in text mode, where every call is a line. A client may switch it to binary mode by sending
+ * the "!binary" line, after which every call is a length-prefixed frame:
+ * <pre>
+ * Request:  [int32 length] [int32 request ID] [uint8 module length] [module] [uint8 function length] [function] [parameter]
+ * Response: [int32 length] [int32 request ID] [uint8 status] [result]
+ * </pre>
+ * The length counts the bytes following it, all strings are UTF-8, and the status is one of
+ * {@link #STATUS_NOT_FINISHED}, {@link #STATUS_FINISHED}, {@link #STATUS_NO_RESULT} or {@link #STATUS_PUSH}.
+ * Frames with a request ID of 0 are answered in order, all others are executed concurrently.
+ * <p>
+ * Session commands start with "!" and are sent like calls, with the command in place of the module ID.
+ * "!subscribe [module] [period] [change]" makes the server push the module's telemetry every period (in milliseconds),
+ * or only when something changed if "change" is given, until "!unsubscribe [module]" is sent.
+ * Pushes are sent as "push:[module]:[telemetry]" lines, or as frames with the push status and a "[module]:[telemetry]" result.
+ * <p>
+ * "!batch [atomic]" followed by one call per line (base64 encoded in text mode, or in the parameter of a binary frame)
+ * executes all calls in order and answers with a single JSON array of [finished, result] pairs. Atomic batches hold
+ * the module tree's lock, so they never interleave with a control loop that holds it too, and can't call asynchronous
+ * functions.
+ * <p>
+ * "!compress [threshold]" makes the session deflate (in the zlib format) every result and push of at least threshold
+ * bytes (512 by default). Deflated text lines are sent as "[finished]:deflate:[base64]" (and pushes as
+ * "push:deflate:[base64]"), and deflated frames have the {@link #STATUS_DEFLATED} bit set in their status.
+ * Once negotiated, the client may send "deflate:[base64]" lines, which are answered like "base64:" lines, and frames
+ * with the {@link #FUNCTION_DEFLATED} bit set in the function length, whose parameter is deflated.
+ * <p>
+ * Asynchronous functions never hold up the connection: their response is sent once their future completes.
+ * On connections served by a reactor, untagged calls to anything but the built-in functions (see
+ * {@link Module#isBuiltIn(String)}) and batches are executed on a worker thread, after the untagged calls before them,
+ * so that user code never holds up the reactor's other connections.
+ * <p>
+ * Plain and base64 text calls to synchronous functions (only built-in ones on connections served by a reactor) are
+ * parsed, decoded and answered straight from reused per-session buffers, so that at steady state they only allocate
+ * the parameter string and the function's result.
+ */
+class Session {
+
+    // Log tag
+    private static final String TAG = "Session";
+
+    // Session constants
+    private static final String ARGUMENT_SEPARATOR = " ";
+    private static final String OUTPUT_SEPARATOR = ":";
+    private static final String BASE64_SEPARATOR = "base64:";
+    private static final String REQUEST_ID_INDICATOR = "#";
+    private static final String COMMAND_INDICATOR = "!";
+    private static final String COMMAND_BINARY = "!binary";
+    private static final String COMMAND_SUBSCRIBE = "!subscribe";
+    private static final String COMMAND_UNSUBSCRIBE = "!unsubscribe";
+    private static final String COMMAND_BATCH = "!batch";
+    private static final String COMMAND_COMPRESS = "!compress";
+    private static final String BATCH_ATOMIC = "atomic";
+    private static final String LINE_SEPARATOR = "\n";
+    private static final String WHITESPACE = "\\s+";
+    private static final String SUBSCRIBE_ON_CHANGE = "change";
+
+    // Text fast path constants
+    private static final byte[] BASE64_PREFIX = BASE64_SEPARATOR.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FINISHED_PREFIX = (true + OUTPUT_SEPARATOR).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_FINISHED_PREFIX = (false + OUTPUT_SEPARATOR).getBytes(StandardCharsets.UTF_8);
+    private static final byte SPACE = ' ';
+    private static final byte REQUEST_ID_BYTE = '#';
+    private static final byte COMMAND_BYTE = '!';
+    private static final byte DEFLATE_BYTE = 'd';
+    private static final int NAME_CACHE_SIZE = 64;
+
+    // Framing constants
+    private static final byte LINE_FEED = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+    private static final int BUFFER_SIZE = 8192;
+    private static final int HEADER_LENGTH = 4;
+    private static final int MAXIMUM_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    // Deflated payload prefix
+    static final String DEFLATE_SEPARATOR = "deflate:";
+
+    // Binary response statuses
+    static final byte STATUS_NOT_FINISHED = 0;
+    static final byte STATUS_FINISHED = 1;
+    static final byte STATUS_NO_RESULT = 2;
+    static final byte STATUS_PUSH = 3;
+    static final byte STATUS_DEFLATED = 0x10;
+
+    // Binary request function length flag, for deflated parameters
+    static final int FUNCTION_DEFLATED = 0x80;
+
+    // Compression constants
+    private static final int DEFAULT_THRESHOLD = 512;
+
+    // Default pool for executing tagged (pipelined) calls
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(Threads.named("Shleam-Worker-"));
+
+    // Parent module for running calls on
+    private Module parent;
+
+    // Connection transport
+    private Transport transport;
+
+    // Executor for tagged (pipelined) calls
+    private Executor workers;
+
+    // Whether the session is served by a reactor, so that untagged calls to user code must be executed on the workers too
+    private boolean offloading;
+
+    // Active subscriptions
+    private final ArrayList<Subscription> subscriptions = new ArrayList<>();
+
+    // Framing state
+    private volatile boolean binary = false;
+    private byte[] pending = new byte[BUFFER_SIZE];
+    private int pendingLength = 0;
+
+    // Reused buffers of the text fast path (only touched by the receiving thread)
+    private byte[] decoded = new byte[BUFFER_SIZE];
+    private byte[] encoded = new byte[BUFFER_SIZE];
+    private byte[] response = new byte[BUFFER_SIZE];
+
+    // Strings of recently received module IDs and function names, by the hash of their bytes
+    private final byte[][] nameKeys = new byte[NAME_CACHE_SIZE][];
+    private final String[] nameValues = new String[NAME_CACHE_SIZE];
+
+    // Compression state, negotiated with "!compress"
+    private volatile Compression compression = null;
+    private volatile int threshold = DEFAULT_THRESHOLD;
+
+    // Completes once every untagged response so far was sent
+    private CompletableFuture<Void> ordered = CompletableFuture.completedFuture(null);
+
+    // Completes once every untagged call so far was executed (or submitted, for asynchronous functions)
+    private CompletableFuture<Void> executed = CompletableFuture.completedFuture(null);
+
+    /**
+     * Default constructor, for connections served by a reactor.
+     *
+     * @param parent    Module
+     * @param transport Connection transport
+     */
+    Session(Module parent, Transport transport) {
+        this(parent, transport, WORKERS, true);
+    }
+
+    /**
+     * Constructor with an executor for tagged calls, for connections with a thread of their own.
+     *
+     * @param parent    Module
+     * @param transport Connection transport
+     * @param workers   Executor for tagged (pipelined) calls
+     */
+    Session(Module parent, Transport transport, Executor workers) {
+        this(parent, transport, workers, false);
+    }
+
+    /**
+     * Full constructor.
+     *
+     * @param parent     Module
+     * @param transport  Connection transport
+     * @param workers    Executor for tagged (pipelined) calls
+     * @param offloading Whether to execute slow untagged calls on the workers too
+     */
+    private Session(Module parent, Transport transport, Executor workers, boolean offloading) {
+        this.parent = parent;
+        this.transport = transport;
+        this.workers = workers;
+        this.offloading = offloading;
+    }
+
+    /**
+     * Getter for transport.
+     *
+     * @return The connection transport
+     */
+    Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Getter for binary.
+     *
+     * @return Whether the session switched to binary framing
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Checks whether a payload should be deflated before it is sent.
+     *
+     * @param length Payload length in bytes
+     * @return Whether the session negotiated compression and the payload reaches the threshold
+     */
+    boolean isCompressing(int length) {
+        return compression != null && length >= threshold;
+    }
+
+    /**
+     * Ends the session, cancelling all of its subscriptions. Must be called once the connection is closed.
+     */
+    void close() {
+        synchronized (subscriptions) {
+            for (Subscription subscription : subscriptions) {
+                Publisher.unsubscribe(subscription);
+            }
+            subscriptions.clear();
+        }
+        // Release the compression state
+        Compression current = compression;
+        if (current != null)
+            current.end();
+    }
+
+    /**
+     * Consumes received bytes, and handles every complete line or frame in them.
+     *
+     * @param input Received bytes
+     * @throws IOException Thrown when the peer violates the framing
+     */
+    void receive(ByteBuffer input) throws IOException {
+        while (input.hasRemaining()) {
+            if (binary) {
+                receiveFrame(input);
+            } else {
+                receiveLine(input);
+            }
+        }
+    }
+
+    /**
+     * Consumes bytes until the end of the current line, and handles it if it is complete.
+     *
+     * @param input Received bytes
+     */
+    private void receiveLine(ByteBuffer input) {
+        while (input.hasRemaining()) {
+            byte current = input.get();
+            if (current == LINE_FEED) {
+                // Remove a trailing carriage return
+                int length = pendingLength > 0 && pending[pendingLength - 1] == CARRIAGE_RETURN ? pendingLength - 1 : pendingLength;
+                // Reset the line
+                pendingLength = 0;
+                // Handle the line, straight from the buffer when possible
+                if (!handleFast(pending, length))
+                    handle(new String(pending, 0, length, StandardCharsets.UTF_8));
+                // Return to let the mode change take effect
+                return;
+            }
+            // Append to the line
+            append(current);
+        }
+    }
+
+    /**
+     * Consumes bytes until the end of the current frame, and handles it if it is complete.
+     *
+     * @param input Received bytes
+     * @throws IOException Thrown when the frame is too long
+     */
+    private void receiveFrame(ByteBuffer input) throws IOException {
+        // Read the length header
+        while (pendingLength < HEADER_LENGTH && input.hasRemaining())
+            append(input.get());
+        if (pendingLength < HEADER_LENGTH)
+            return;
+        // Validate the length
+        int length = ByteBuffer.wrap(pending, 0, HEADER_LENGTH).getInt();
+        if (length < 0 || length > MAXIMUM_FRAME_LENGTH)
+            throw new IOException("Illegal frame length " + length);
+        // Make room for the available part of the body, growing as it arrives rather than trusting the header alone
+        int total = HEADER_LENGTH + length;
+        int available = Math.min(input.remaining(), total - pendingLength);
+        if (pending.length < pendingLength + available)
+            pending = Arrays.copyOf(pending, Math.min(total, Math.max(pending.length * 2, pendingLength + available)));
+        // Copy the available part of the body
+        input.get(pending, pendingLength, available);
+        pendingLength += available;
+        // Handle the frame once complete
+        if (pendingLength == total) {
+            pendingLength = 0;
+            try {
+                handle(ByteBuffer.wrap(pending, HEADER_LENGTH, length).slice());
+            } catch (RuntimeException | DataFormatException e) {
+                throw new IOException("Malformed frame", e);
+            }
+        }
+    }
+
+    /**
+     * Appends a single byte to the pending buffer.
+     *
+     * @param value Byte
+     */
+    private void append(byte value) {
+        // Grow the buffer if needed
+        if (pendingLength == pending.length)
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        pending[pendingLength++] = value;
+    }
+
+    /**
+     * Parses a received line, executes the call and sends the response line.
+     * <p>
+     * Lines prefixed with a request ID (e.g. "#12 master help") are executed on a worker thread, and their
+     * response is sent, prefixed with the same ID, as soon as it completes. Untagged lines are executed in order,
+     * and their responses are sent in the same order, even when an asynchronous function completes later.
+     *
+     * @param received Received line
+     */
+    private void handle(String received) {
+        // Check whether this is a mode negotiation
+        if (received.equals(COMMAND_BINARY)) {
+            sendLine(respond(Result.finished("binary"), false));
+            binary = true;
+            return;
+        }
+        // Check whether the call is tagged with a request ID
+        if (received.startsWith(REQUEST_ID_INDICATOR)) {
+            int separator = received.indexOf(ARGUMENT_SEPARATOR);
+            // Make sure the ID is well-formed
+            if (separator <= REQUEST_ID_INDICATOR.length()) {
+                sendLine(respond(Result.notFinished("Malformed request ID"), false));
+                return;
+            }
+            // Split the tag from the call
+            String tag = received.substring(0, separator + ARGUMENT_SEPARATOR.length());
+            String call = received.substring(separator + ARGUMENT_SEPARATOR.length());
+            // Execute concurrently and respond when done
+            dispatch(() -> process(call, false).thenAccept(response -> sendLine(tag + response)));
+        } else {
+            // Turn a failed response into a failure line, so that it never stops the responses after it
+            CompletableFuture<String> response = process(received, true).exceptionally(thrownException -> respond(Result.notFinished(unwrap(thrownException).toString()), false));
+            // Send right away, unless an earlier response is still pending
+            if (response.isDone() && ordered.isDone()) {
+                sendLine(response.join());
+            } else {
+                ordered = ordered.thenCombine(response, (previous, line) -> line).thenAccept(this::sendLine).exceptionally(this::dropped);
+            }
+        }
+    }
+
+    /**
+     * Executes an untagged text line straight from the line buffer, and writes its response into a reused buffer.
+     * Anything else (tagged calls, session commands, deflated or malformed lines, asynchronous functions, functions that
+     * are not built in when served by a reactor, and responses that must wait for earlier ones) is left to
+     * {@link #handle(String)}.
+     *
+     * @param line   Line buffer
+     * @param length Line length
+     * @return Whether the line was handled
+     */
+    private boolean handleFast(byte[] line, int length) {
+        // Make sure the response can be sent right away
+        if (length == 0 || line[0] == REQUEST_ID_BYTE || !ordered.isDone())
+            return false;
+        byte[] call = line;
+        int callLength = length;
+        // Decode base64 into the reused buffer
+        boolean isBase64 = startsWith(line, length, BASE64_PREFIX);
+        if (isBase64) {
+            if (decoded.length < length)
+                decoded = new byte[Math.max(length, decoded.length * 2)];
+            callLength = Codec.decodeBase64(line, BASE64_PREFIX.length, length - BASE64_PREFIX.length, decoded, 0);
+            if (callLength < 0)
+                return false;
+            call = decoded;
+        } else if (line[0] == DEFLATE_BYTE && compression != null) {
+            return false;
+        }
+        // Leave session commands to the slow path
+        if (callLength == 0 || call[0] == COMMAND_BYTE)
+            return false;
+        // Find the module ID and the function name
+        int moduleEnd = indexOf(call, 0, callLength, SPACE);
+        if (moduleEnd < 0)
+            return false;
+        int functionEnd = indexOf(call, moduleEnd + 1, callLength, SPACE);
+        if (functionEnd < 0)
+            functionEnd = callLength;
+        // Module and function lookup, leaving asynchronous functions to the slow path, and user code to the workers
+        Module module = parent.descendant(name(call, 0, moduleEnd));
+        String functionName = name(call, moduleEnd + 1, functionEnd - moduleEnd - 1);
+        if (module != null && (offloading ? !module.isBuiltIn(functionName) : module.function(functionName) instanceof AsyncFunction))
+            return false;
+        // Execute the call and respond
+        String parameter = functionEnd < callLength ? new String(call, functionEnd + 1, callLength - functionEnd - 1, StandardCharsets.UTF_8) : null;
+        respondFast(execute(module, functionName, parameter), isBase64);
+        return true;
+    }
+
+    /**
+     * Writes a response line into the reused buffer and sends it, like {@link #respond(Result, boolean)} does.
+     *
+     * @param result   Result object
+     * @param isBase64 Whether the result should be base64 encoded
+     */
+    private void respondFast(Result result, boolean isBase64) {
+        // Make sure we have a result
+        if (result == null) {
+            response[0] = LINE_FEED;
+            transport.send(response, 1);
+            return;
+        }
+        String value = String.valueOf(result.getResult());
+        // Leave results that should be deflated to the slow path
+        if (compression != null && (value.length() >= threshold || value.startsWith(DEFLATE_SEPARATOR))) {
+            sendLine(respond(result, isBase64));
+            return;
+        }
+        // Make room for the whole response
+        int valueLength = Codec.maximumUTF8Length(value.length());
+        int capacity = NOT_FINISHED_PREFIX.length + (isBase64 ? Codec.base64Length(valueLength) : valueLength) + 1;
+        if (response.length < capacity)
+            response = new byte[Math.max(capacity, response.length * 2)];
+        // Write the status
+        byte[] prefix = result.isFinished() ? FINISHED_PREFIX : NOT_FINISHED_PREFIX;
+        System.arraycopy(prefix, 0, response, 0, prefix.length);
+        int length = prefix.length;
+        // Write the result
+        if (isBase64) {
+            if (encoded.length < valueLength)
+                encoded = new byte[Math.max(valueLength, encoded.length * 2)];
+            length = Codec.encodeBase64(encoded, 0, Codec.encodeUTF8(value, encoded, 0), response, length);
+        } else {
+            length = Codec.encodeUTF8(value, response, length);
+        }
+        response[length++] = LINE_FEED;
+        transport.send(response, length);
+    }
+
+    /**
+     * Returns the string of a UTF-8 module ID or function name, reusing the string created the last time it was received.
+     *
+     * @param bytes  Buffer
+     * @param offset Name offset
+     * @param length Name length
+     * @return Name
+     */
+    private String name(byte[] bytes, int offset, int length) {
+        // Hash the name
+        int hash = 0;
+        for (int index = offset; index < offset + length; index++) {
+            hash = 31 * hash + bytes[index];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+        // Check whether it was received before
+        byte[] key = nameKeys[slot];
+        if (key != null && key.length == length && regionMatches(bytes, offset, key))
+            return nameValues[slot];
+        // Create and cache it
+        String name = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        nameKeys[slot] = Arrays.copyOfRange(bytes, offset, offset + length);
+        nameValues[slot] = name;
+        return name;
+    }
+
+    /**
+     * Checks whether a buffer starts with a prefix.
+     *
+     * @param bytes  Buffer
+     * @param length Buffer length
+     * @param prefix Prefix
+     * @return Whether the buffer starts with the prefix
+     */
+    private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+        return length >= prefix.length && regionMatches(bytes, 0, prefix);
+    }
+
+    /**
+     * Checks whether a buffer holds a prefix at an offset, assuming it is long enough.
+     *
+     * @param bytes  Buffer
+     * @param offset Offset
+     * @param prefix Prefix
+     * @return Whether the prefix is at the offset
+     */
+    private static boolean regionMatches(byte[] bytes, int offset, byte[] prefix) {
+        for (int index = 0; index < prefix.length; index++) {
+            if (bytes[offset + index] != prefix[index])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the first occurrence of a byte in a buffer.
+     *
+     * @param bytes Buffer
+     * @param start Start offset
+     * @param end   End offset
+     * @param value Byte
+     * @return Offset, or -1 when not found
+     */
+    private static int indexOf(byte[] bytes, int start, int end, byte value) {
+        for (int index = start; index < end; index++) {
+            if (bytes[index] == value)
+                return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a received frame body, executes the call and sends the response frame.
+     *
+     * @param frame Frame body
+     * @throws DataFormatException Thrown when a deflated parameter is malformed
+     */
+    private void handle(ByteBuffer frame) throws DataFormatException {
+        // Parse the frame
+        int id = frame.getInt();
+        String moduleID = readString(frame, frame.get() & 0xFF);
+        int functionLength = frame.get() & 0xFF;
+        // Check whether the parameter is deflated
+        Compression current = compression;
+        boolean deflated = current != null && (functionLength & FUNCTION_DEFLATED) != 0;
+        String functionName = readString(frame, deflated ? functionLength & ~FUNCTION_DEFLATED : functionLength);
+        String parameter;
+        if (deflated) {
+            parameter = current.inflate(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), MAXIMUM_FRAME_LENGTH);
+        } else {
+            parameter = frame.hasRemaining() ? readString(frame, frame.remaining()) : null;
+        }
+        // Check whether this is a session command
+        boolean isCommand = moduleID.startsWith(COMMAND_INDICATOR);
+        String arguments = parameter == null ? functionName : functionName + LINE_SEPARATOR + parameter;
+        // Execute in order or concurrently
+        if (id == 0) {
+            // Turn a failed result into a failure result, so that it never stops the responses after it
+            CompletableFuture<Result> result = (isCommand ? inOrder(() -> command(moduleID, arguments), !moduleID.equals(COMMAND_BATCH)) : inOrder(() -> perform(moduleID, functionName, parameter), isCheap(moduleID, functionName))).exceptionally(thrownException -> Result.notFinished(unwrap(thrownException).toString()));
+            // Send right away, unless an earlier response is still pending
+            if (result.isDone() && ordered.isDone()) {
+                sendFrame(id, result.join());
+            } else {
+                ordered = ordered.thenCombine(result, (previous, value) -> value).thenAccept(value -> sendFrame(id, value)).exceptionally(this::dropped);
+            }
+        } else {
+            dispatch(() -> (isCommand ? command(moduleID, arguments) : perform(moduleID, functionName, parameter)).thenAccept(result -> sendFrame(id, result)));
+        }
+    }
+
+    /**
+     * Checks whether a call is cheap enough to execute on a reactor, which is only true for built-in functions and
+     * calls to missing modules.
+     *
+     * @param moduleID     Module ID
+     * @param functionName Function name
+     * @return Whether the call is cheap
+     */
+    private boolean isCheap(String moduleID, String functionName) {
+        Module module = parent.descendant(moduleID);
+        return module == null || module.isBuiltIn(functionName);
+    }
+
+    /**
+     * Checks whether a decoded function call is cheap enough to execute on a reactor.
+     *
+     * @param call Function call
+     * @return Whether the call is cheap
+     */
+    private boolean isCheap(String call) {
+        // Malformed calls only fail
+        String[] parsed = call.split(ARGUMENT_SEPARATOR, 3);
+        return parsed.length < 2 || isCheap(parsed[0], parsed[1]);
+    }
+
+    /**
+     * Executes an untagged call once every untagged call before it was executed. Cheap calls are executed right away
+     * on the receiving thread when nothing is pending, and on a session served by a reactor everything else is
+     * executed on the workers, so that it never holds up the reactor. Must only be called by the receiving thread.
+     *
+     * @param call  Call
+     * @param cheap Whether the call is cheap enough to execute on a reactor
+     * @param <T>   Result type
+     * @return Result future
+     */
+    private <T> CompletableFuture<T> inOrder(Supplier<CompletableFuture<T>> call, boolean cheap) {
+        // Execute right away, unless an earlier call is still pending or the call must be kept off the reactor
+        if (!offloading || (cheap && executed.isDone()))
+            return call.get();
+        // Execute on a worker once the previous call was executed
+        CompletableFuture<CompletableFuture<T>> started = executed.thenApplyAsync(previous -> call.get(), this::dispatch);
+        executed = started.handle((future, thrownException) -> null);
+        return started.thenCompose(future -> future);
+    }
+
+    /**
+     * Executes a tagged call on the session's executor, or on the receiving thread when the executor is full.
+     *
+     * @param task Call task
+     */
+    private void dispatch(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException rejectedException) {
+            // Slow the connection down instead of dropping the call
+            task.run();
+        }
+    }
+
+    /**
+     * Decodes and executes a line and returns the response line.
+     *
+     * @param received Line, without its request ID
+     * @param untagged Whether the line is untagged, and should be executed in order by the receiving thread
+     * @return Response line future
+     */
+    private CompletableFuture<String> process(String received, boolean untagged) {
+        // Parse the information
+        String parsed = received;
+        // Check if the information is base64 encoded or not and decode it accordingly
+        Compression current = compression;
+        boolean isDeflated = current != null && received.startsWith(DEFLATE_SEPARATOR);
+        boolean isBase64 = isDeflated || received.startsWith(BASE64_SEPARATOR);
+        // Decode base64, answering malformed lines with a failure result
+        try {
+            if (isDeflated) {
+                byte[] decoded = Base64.getDecoder().decode(received.substring(DEFLATE_SEPARATOR.length()));
+                parsed = current.inflate(decoded, 0, decoded.length, MAXIMUM_FRAME_LENGTH);
+            } else if (isBase64) {
+                parsed = new String(Base64.getDecoder().decode(received.substring(BASE64_SEPARATOR.length())), StandardCharsets.UTF_8);
+            }
+        } catch (IllegalArgumentException | DataFormatException decodeException) {
+            return CompletableFuture.completedFuture(respond(Result.notFinished("Malformed request: " + decodeException.getMessage()), true));
+        }
+        // Check whether this is a session command
+        if (parsed.startsWith(COMMAND_INDICATOR)) {
+            // The command name ends at a space, or at the first line separator which starts the arguments' body
+            int space = parsed.indexOf(ARGUMENT_SEPARATOR);
+            int line = parsed.indexOf(LINE_SEPARATOR);
+            boolean split = space < 0 || (line >= 0 && line < space);
+            String name = split ? (line < 0 ? parsed : parsed.substring(0, line)) : parsed.substring(0, space);
+            String arguments = split ? (line < 0 ? "" : parsed.substring(line)) : parsed.substring(space + ARGUMENT_SEPARATOR.length());
+            // Batches may take long, so keep them off the reactor
+            Supplier<CompletableFuture<Result>> command = () -> command(name, arguments);
+            return (untagged ? inOrder(command, !name.equals(COMMAND_BATCH)) : command.get()).thenApply(result -> respond(result, isBase64));
+        }
+        // Execute the call and create the response
+        String call = parsed;
+        CompletableFuture<Result> result = untagged ? inOrder(() -> perform(call), isCheap(call)) : perform(call);
+        // Avoid chaining completed calls
+        if (result.isDone())
+            return CompletableFuture.completedFuture(respond(result.join(), isBase64));
+        return result.thenApply(value -> respond(value, isBase64));
+    }
+
+    /**
+     * Executes a session command and returns the result.
+     *
+     * @param name      Command name
+     * @param arguments Command arguments, where the first line holds the options and the rest is the body
+     * @return Result future
+     */
+    private CompletableFuture<Result> command(String name, String arguments) {
+        try {
+            String[] parsed = arguments.trim().split(WHITESPACE);
+            if (name.equals(COMMAND_BATCH)) {
+                // Split the options from the calls
+                int line = arguments.indexOf(LINE_SEPARATOR);
+                String options = line < 0 ? arguments : arguments.substring(0, line);
+                String[] calls = line < 0 ? new String[0] : arguments.substring(line + LINE_SEPARATOR.length()).split(LINE_SEPARATOR);
+                // Execute the batch while holding the lock, which is never held while waiting
+                if (options.trim().equals(BATCH_ATOMIC)) {
+                    // Make sure every call completes synchronously
+                    String async = findAsync(calls);
+                    if (async != null)
+                        return CompletableFuture.completedFuture(Result.notFinished("Atomic batches can't call asynchronous functions: " + async));
+                    Lock lock = parent.getLock();
+                    lock.lock();
+                    try {
+                        return batch(calls);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                return batch(calls);
+            } else if (name.equals(COMMAND_COMPRESS)) {
+                // Parse the threshold
+                threshold = parsed[0].isEmpty() ? DEFAULT_THRESHOLD : Math.max(0, Integer.parseInt(parsed[0]));
+                // Create the compression state once
+                synchronized (this) {
+                    if (compression == null)
+                        compression = new Compression();
+                }
+                return CompletableFuture.completedFuture(Result.finished("Compressing from " + threshold + " bytes"));
+            } else if (name.equals(COMMAND_SUBSCRIBE)) {
+                // Module lookup
+                Module module = parent.descendant(parsed[0]);
+                if (module == null)
+                    return CompletableFuture.completedFuture(Result.notFinished("Module not found"));
+                // Parse the rate
+                long period = Long.parseLong(parsed[1]);
+                boolean onChange = parsed.length > 2 && parsed[2].equals(SUBSCRIBE_ON_CHANGE);
+                // Subscribe
+                synchronized (subscriptions) {
+                    subscriptions.add(Publisher.subscribe(this, module, parsed[0], period, onChange));
+                }
+                return CompletableFuture.completedFuture(Result.finished("Subscribed"));
+            } else if (name.equals(COMMAND_UNSUBSCRIBE)) {
+                // Module lookup
+                Module module = parent.descendant(parsed[0]);
+                // Remove all of the module's subscriptions
+                long dropped = 0;
+                synchronized (subscriptions) {
+                    for (Subscription subscription : new ArrayList<>(subscriptions)) {
+                        if (subscription.getPublisher().getModule() == module) {
+                            Publisher.unsubscribe(subscription);
+                            subscriptions.remove(subscription);
+                            dropped += subscription.getDropped();
+                        }
+                    }
+                }
+                return CompletableFuture.completedFuture(Result.finished("Unsubscribed, " + dropped + " frames dropped"));
+            }
+            return CompletableFuture.completedFuture(Result.notFinished("Command not found"));
+        } catch (Exception thrownException) {
+            // Create a failure result
+            return CompletableFuture.completedFuture(Result.notFinished(thrownException.toString()));
+        }
+    }
+
+    /**
+     * Executes a batch of calls in order, and returns all of their results as a JSON array of [finished, result] pairs.
+     *
+     * @param calls Function calls
+     * @return Result future
+     */
+    private CompletableFuture<Result> batch(String[] calls) {
+        StringBuilder builder = new StringBuilder();
+        builder.append('[');
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+        for (String call : calls) {
+            // Remove a trailing carriage return
+            String line = call.endsWith("\r") ? call.substring(0, call.length() - 1) : call;
+            // Skip empty lines
+            if (line.isEmpty())
+                continue;
+            // Execute the call once the previous one completed
+            chain = chain.thenCompose(previous -> perform(line)).thenAccept(result -> {
+                if (builder.length() > 1)
+                    builder.append(',');
+                // Append the result
+                if (result == null) {
+                    builder.append("null");
+                } else {
+                    builder.append('[').append(result.isFinished()).append(',');
+                    JSONBuilder.quote(builder, String.valueOf(result.getResult())).append(']');
+                }
+            });
+        }
+        return chain.thenApply(done -> Result.finished(builder.append(']').toString()));
+    }
+
+    /**
+     * Finds the first call of a batch that targets an asynchronous function.
+     *
+     * @param calls Function calls
+     * @return Call line, or null when all calls are synchronous
+     */
+    private String findAsync(String[] calls) {
+        for (String call : calls) {
+            // Call parsing
+            String[] moduleID = call.trim().split(ARGUMENT_SEPARATOR, 3);
+            if (moduleID.length < 2)
+                continue;
+            // Module and function lookup
+            Module module = parent.descendant(moduleID[0]);
+            if (module != null && module.function(moduleID[1]) instanceof AsyncFunction)
+                return call.trim();
+        }
+        return null;
+    }
+
+    /**
+     * Creates a response line from a result.
+     *
+     * @param result   Result object
+     * @param isBase64 Whether the result should be base64 encoded
+     * @return Response line
+     */
+    private String respond(Result result, boolean isBase64) {
+        // Make sure we have a result
+        if (result == null)
+            return "";
+        String value = String.valueOf(result.getResult());
+        // Deflate large results (and results that would be mistaken for deflated ones)
+        Compression current = compression;
+        if (current != null && (value.length() >= threshold || value.startsWith(DEFLATE_SEPARATOR))) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            byte[] deflated = current.deflate(bytes);
+            // Only send the deflated result when it is shorter
+            if (deflated != null && (value.startsWith(DEFLATE_SEPARATOR) || encodedLength(deflated.length) + DEFLATE_SEPARATOR.length() < (isBase64 ? encodedLength(bytes.length) : bytes.length)))
+                return result.isFinished() + OUTPUT_SEPARATOR + DEFLATE_SEPARATOR + Base64.getEncoder().encodeToString(deflated);
+        }
+        // Create the response
+        return result.isFinished() + OUTPUT_SEPARATOR + (isBase64 ? Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8)) : value);
+    }
+
+    /**
+     * Calculates the length of a base64 encoded payload.
+     *
+     * @param length Payload length
+     * @return Encoded length
+     */
+    private static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    /**
+     * Sends a response line.
+     *
+     * @param response Response line
+     */
+    private void sendLine(String response) {
+        transport.send(encodeLine("", response.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Sends a response frame.
+     *
+     * @param id     Request ID
+     * @param result Result object
+     */
+    private void sendFrame(int id, Result result) {
+        byte[] bytes = result == null || result.getResult() == null ? new byte[0] : result.getResult().getBytes(StandardCharsets.UTF_8);
+        // Determine the status
+        byte status = result == null ? STATUS_NO_RESULT : result.isFinished() ? STATUS_FINISHED : STATUS_NOT_FINISHED;
+        // Deflate large results, when it makes them shorter
+        Compression current = compression;
+        if (current != null && bytes.length >= threshold) {
+            byte[] deflated = current.deflate(bytes);
+            if (deflated != null && deflated.length < bytes.length) {
+                bytes = deflated;
+                status |= STATUS_DEFLATED;
+            }
+        }
+        // Create the frame
+        transport.send(encodeFrame(id, status, bytes));
+    }
+
+    /**
+     * Encodes a text mode line.
+     *
+     * @param prefix  Line prefix
+     * @param payload Line contents
+     * @return Line bytes, ready for sending
+     */
+    static ByteBuffer encodeLine(String prefix, byte[] payload) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + payload.length + 1);
+        buffer.put(bytes).put(payload).put(LINE_FEED).flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a binary mode response frame.
+     *
+     * @param id      Request ID
+     * @param status  Status
+     * @param payload Result bytes
+     * @return Frame bytes, ready for sending
+     */
+    static ByteBuffer encodeFrame(int id, byte status, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + 4 + 1 + payload.length);
+        buffer.putInt(4 + 1 + payload.length).putInt(id).put(status).put(payload).flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a UTF-8 string from a buffer.
+     *
+     * @param buffer Buffer
+     * @param length String length in bytes
+     * @return String
+     */
+    private static String readString(ByteBuffer buffer, int length) {
+        String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    /**
+     * Logs a response that could not be sent, and lets the responses after it go on.
+     *
+     * @param thrownException Thrown exception
+     * @return Nothing
+     */
+    private Void dropped(Throwable thrownException) {
+        Logger.log(Logger.Level.WARNING, TAG, "Response dropped: " + unwrap(thrownException));
+        return null;
+    }
+
+    /**
+     * Unwraps the exception a future completed with.
+     *
+     * @param thrownException Thrown exception
+     * @return The original exception
+     */
+    private static Throwable unwrap(Throwable thrownException) {
+        return thrownException instanceof CompletionException && thrownException.getCause() != null ? thrownException.getCause() : thrownException;
+    }
+
+    /**
+     * Executes a decoded function call and returns the result.
+     *
+     * @param call Function call
+     * @return Result future
+     */
+    private CompletableFuture<Result> perform(String call) {
+        try {
+            // Call parsing
+            String[] moduleID = call.split(ARGUMENT_SEPARATOR, 2);
+            String[] functionCall = moduleID[1].split(ARGUMENT_SEPARATOR, 2);
+            // Execute the call
+            return perform(moduleID[0], functionCall[0], functionCall.length > 1 ? functionCall[1] : null);
+        } catch (Exception thrownException) {
+            // Create a failure result
+            return CompletableFuture.completedFuture(Result.notFinished(thrownException.toString()));
+        }
+    }
+
+    /**
+     * Executes a parsed function call and returns the result, without waiting for asynchronous functions.
+     *
+     * @param moduleID     Module ID
+     * @param functionName Function name
+     * @param parameter    Parameter
+     * @return Result future, which never completes exceptionally
+     */
+    private CompletableFuture<Result> perform(String moduleID, String functionName, String parameter) {
+        // Module lookup
+        Module module = parent.descendant(moduleID);
+        // Execute synchronous calls right away
+        if (module == null || !(module.function(functionName) instanceof AsyncFunction))
+            return CompletableFuture.completedFuture(execute(module, functionName, parameter));
+        try {
+            // Submit the call
+            CompletableFuture<Result> result = module.submit(functionName, parameter);
+            // Avoid chaining completed calls
+            if (result.isDone() && !result.isCompletedExceptionally())
+                return result;
+            // Turn failures into failure results
+            return result.exceptionally(thrownException -> Result.notFinished(unwrap(thrownException).toString()));
+        } catch (Exception thrownException) {
+            // Create a failure result
+            return CompletableFuture.completedFuture(Result.notFinished(thrownException.toString()));
+        }
+    }
+
+    /**
+     * Executes a call synchronously, recording it in the function's metrics, and turns failures into failure results.
+     * Shared by the text fast path and {@link #perform(String, String, String)}.
+     *
+     * @param module       Module, or null when it was not found
+     * @param functionName Function name
+     * @param parameter    Parameter
+     * @return Result object, or null when the function does not exist
+     */
+    private static Result execute(Module module, String functionName, String parameter) {
+        // Make sure the module exists
+        if (module == null)
+            return Result.notFinished("Module not found");
+        try {
+            // Execute the call
+            return module.execute(functionName, parameter);
+        } catch (Exception thrownException) {
+            // Create a failure result
+            return Result.notFinished(thrownException.toString());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This is used to hold a single connection's subscription to a {@link Publisher}.
+ * It keeps only the latest frame, so frames that were not sent in time are dropped instead of queued.
+ */
+class Subscription {
+
+    // Owning session
+    private Session session;
+
+    // Publisher
+    private Publisher publisher;
+
+    // Latest unsent frame
+    private AtomicReference<ByteBuffer> latest = new AtomicReference<>();
+
+    // Whether the transport was already notified about the latest frame
+    private AtomicBoolean notified = new AtomicBoolean();
+
+    // Dropped frame counter
+    private AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Default constructor.
+     *
+     * @param session   Owning session
+     * @param publisher Publisher
+     */
+    Subscription(Session session, Publisher publisher) {
+        this.session = session;
+        this.publisher = publisher;
+    }
+
+    /**
+     * Offers a new frame, replacing the previous one if it was not sent yet.
+     *
+     * @param text   Frame for text mode sessions
+     * @param binary Frame for binary mode sessions
+     */
+    void offer(ByteBuffer text, ByteBuffer binary) {
+        // Each subscription needs its own position in the shared frame
+        ByteBuffer frame = (session.isBinary() ? binary : text).duplicate();
+        // Replace the unsent frame
+        if (latest.getAndSet(frame) != null)
+            dropped.incrementAndGet();
+        // Notify the transport once per frame
+        if (!notified.getAndSet(true))
+            session.getTransport().push(this);
+    }
+
+    /**
+     * Takes the latest unsent frame.
+     *
+     * @return Frame, or null when there is none
+     */
+    ByteBuffer take() {
+        notified.set(false);
+        return latest.getAndSet(null);
+    }
+
+    /**
+     * Getter for session.
+     *
+     * @return The owning session
+     */
+    Session getSession() {
+        return session;
+    }
+
+    /**
+     * Getter for publisher.
+     *
+     * @return The publisher
+     */
+    Publisher getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Getter for the dropped frame count.
+     *
+     * @return The amount of frames replaced before they were sent
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+}
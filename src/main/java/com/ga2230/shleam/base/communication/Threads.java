@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This is used to create the named executors that run the server's threads.
+ */
+abstract class Threads {
+
+    // Time an idle pooled thread is kept alive
+    private static final long KEEP_ALIVE = 60;
+
+    /**
+     * Creates a factory of daemon threads, named with the given prefix and a running number.
+     *
+     * @param prefix Thread name prefix
+     * @return Thread factory
+     */
+    static ThreadFactory named(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Creates a pool of at most the given amount of platform threads. Idle threads are stopped after a minute,
+     * and tasks submitted while all threads are busy are rejected with a {@link java.util.concurrent.RejectedExecutionException}
+     * instead of waiting, so that the caller can refuse the work.
+     *
+     * @param prefix Thread name prefix
+     * @param size   Maximum amount of threads
+     * @return Executor
+     */
+    static ExecutorService bounded(String prefix, int size) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<>(), named(prefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread per task (Java 21 and up), looked up reflectively so that
+     * the framework still runs on older versions.
+     *
+     * @param prefix Thread name prefix
+     * @return Executor, or null when virtual threads are not available
+     */
+    static ExecutorService virtual(String prefix) {
+        try {
+            // Create a named virtual thread factory (Thread.ofVirtual().name(prefix, 0).factory())
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            // Create the executor (Executors.newThreadPerTaskExecutor(factory))
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException unsupportedException) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This interface is used by a {@link Session} to write to its connection, regardless of how the connection is served.
+ * Both methods must be safe to call from any thread.
+ */
+interface Transport {
+
+    /**
+     * Sends a response. Responses are sent in the order they are given, and are never dropped.
+     *
+     * @param response Response bytes
+     */
+    void send(ByteBuffer response);
+
+    /**
+     * Sends a response held in a buffer that the caller reuses as soon as this returns, so the transport must write or
+     * copy it first. Responses are sent in the order they are given, and are never dropped.
+     *
+     * @param response Response buffer
+     * @param length   Response length
+     */
+    void send(byte[] response, int length);
+
+    /**
+     * Notifies the transport that a subscription has a frame waiting. The transport should {@link Subscription#take()}
+     * the frame once it has room for it, so that a slow connection only ever receives the latest frame.
+     *
+     * @param subscription Subscription
+     */
+    void push(Subscription subscription);
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.script;
+
+import com.ga2230.shleam.base.structure.AsyncFunction;
+import com.ga2230.shleam.base.structure.Function;
+import com.ga2230.shleam.base.structure.Metrics;
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Result;
+import com.ga2230.shleam.base.utils.TimerWheel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This is used to hold a script line that was parsed and resolved once, so that running it does no parsing and no lookups.
+ */
+class Call {
+
+    // Call constants
+    private static final String ARGUMENT_SEPARATOR = " ";
+    private static final String TYPE_ASYNC = "a";
+    private static final String TYPE_BLOCKING = "b";
+
+    // Result of an asynchronous function that did not complete yet
+    private static final Result PENDING = Result.notFinished("Pending");
+
+    // Original line (for telemetry)
+    private String line;
+
+    // Resolved call
+    private boolean async;
+    private Module module;
+    private Function function;
+    private Metrics metrics;
+    private String parameter;
+
+    // Outcome of the last execution on a worker thread
+    private volatile Result outcome = null;
+    private volatile Exception failure = null;
+
+    // Future of an asynchronous function that did not complete yet
+    private volatile CompletableFuture<Result> pending = null;
+
+    /**
+     * Default constructor.
+     *
+     * @param line      Original line
+     * @param async     Whether the call is async
+     * @param module    Target module
+     * @param function  Target function
+     * @param metrics   Target function's metrics
+     * @param parameter Parameter
+     */
+    private Call(String line, boolean async, Module module, Function function, Metrics metrics, String parameter) {
+        this.line = line;
+        this.async = async;
+        this.module = module;
+        this.function = function;
+        this.metrics = metrics;
+        this.parameter = parameter;
+    }
+
+    /**
+     * Parses a script line and resolves its module and function.
+     *
+     * @param line   Script line
+     * @param parent Parent module for resolving the module ID
+     * @return Compiled call
+     * @throws IllegalArgumentException Thrown when the line is malformed or can't be resolved
+     */
+    static Call compile(String line, Module parent) {
+        /*
+            Example for a function call:
+            a master print Hello World
+            ^ Call type
+              ^^^^^^ Module ID
+                     ^^^^^ Function call
+                           ^^^^^^^^^^^ Parameter
+         */
+        String[] callType = line.split(ARGUMENT_SEPARATOR, 2);
+        // Make sure the call type is valid
+        if (!callType[0].equals(TYPE_ASYNC) && !callType[0].equals(TYPE_BLOCKING))
+            throw new IllegalArgumentException("Unknown call type \"" + callType[0] + "\"");
+        // Make sure there is a module and a function
+        String[] moduleID = callType.length > 1 ? callType[1].split(ARGUMENT_SEPARATOR, 2) : new String[0];
+        if (moduleID.length < 2)
+            throw new IllegalArgumentException("Missing module or function");
+        String[] functionCall = moduleID[1].split(ARGUMENT_SEPARATOR, 2);
+        // Find module
+        Module module = parent.descendant(moduleID[0]);
+        if (module == null)
+            throw new IllegalArgumentException("Module \"" + moduleID[0] + "\" not found");
+        // Find function
+        Function function = module.function(functionCall[0]);
+        if (function == null)
+            throw new IllegalArgumentException("Function \"" + functionCall[0] + "\" not found");
+        // Create the call
+        return new Call(line, callType[0].equals(TYPE_ASYNC), module, function, module.metrics(functionCall[0]), functionCall.length > 1 ? functionCall[1] : null);
+    }
+
+    /**
+     * Executes the call.
+     *
+     * @return Result object
+     * @throws Exception Thrown exception
+     */
+    Result execute() throws Exception {
+        // Execute synchronous functions directly, recording the call
+        if (!(function instanceof AsyncFunction))
+            return metrics == null ? function.execute(parameter) : metrics.measure(function, parameter);
+        // Submit asynchronous functions once
+        CompletableFuture<Result> future = pending;
+        if (future == null) {
+            AsyncFunction asyncFunction = (AsyncFunction) function;
+            // Fail the call once its time limit passes, so that it never stays pending forever
+            future = metrics == null ? asyncFunction.submit(parameter) : metrics.measure(asyncFunction, parameter);
+            pending = future = TimerWheel.timeout(future, asyncFunction.getTimeout(), TimeUnit.MILLISECONDS);
+        }
+        // Keep the call pending until the future completes
+        if (!future.isDone())
+            return PENDING;
+        pending = null;
+        try {
+            // Collect the result
+            return future.get();
+        } catch (ExecutionException thrownException) {
+            // Unwrap the cause
+            if (thrownException.getCause() instanceof Exception)
+                throw (Exception) thrownException.getCause();
+            throw thrownException;
+        }
+    }
+
+    /**
+     * Cancels the future of an asynchronous function that did not complete yet.
+     */
+    void cancel() {
+        CompletableFuture<Result> future = pending;
+        if (future != null) {
+            pending = null;
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Executes the call and stores its outcome for {@link #collect()}, used when executing on a worker thread.
+     */
+    void run() {
+        try {
+            outcome = execute();
+        } catch (Exception thrownException) {
+            failure = thrownException;
+        }
+    }
+
+    /**
+     * Collects the stored outcome of the last {@link #run()}.
+     *
+     * @return Result object, or null when there is no outcome yet
+     * @throws Exception Exception thrown by the call
+     */
+    Result collect() throws Exception {
+        // Rethrow a failure
+        Exception thrownException = failure;
+        if (thrownException != null) {
+            failure = null;
+            throw thrownException;
+        }
+        // Return the result
+        Result result = outcome;
+        outcome = null;
+        return result;
+    }
+
+    /**
+     * Checks whether the last {@link #run()} left an outcome that was not collected yet.
+     *
+     * @return Has an uncollected outcome
+     */
+    boolean hasOutcome() {
+        return outcome != null || failure != null;
+    }
+
+    /**
+     * Getter for async.
+     *
+     * @return Whether the call is async
+     */
+    boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Getter for module.
+     *
+     * @return The target module
+     */
+    Module getModule() {
+        return module;
+    }
+
+    @Override
+    public String toString() {
+        return line;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.script;
+
+import java.util.Arrays;
+
+/**
+ * This is used to queue calls in a ring buffer, so that adding and removing calls at either end never shifts or allocates.
+ * <p>
+ * An unbounded queue grows when full, while a bounded queue drops its oldest call instead.
+ */
+class CallQueue {
+
+    // Default capacity
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Ring buffer
+    private Call[] calls;
+    private int head = 0;
+    private int size = 0;
+
+    // Whether the oldest call is dropped when full
+    private boolean bounded;
+
+    /**
+     * Creates an unbounded queue.
+     */
+    CallQueue() {
+        this(DEFAULT_CAPACITY, false);
+    }
+
+    /**
+     * Creates a queue.
+     *
+     * @param capacity Initial capacity, or maximum capacity for bounded queues
+     * @param bounded  Whether the oldest call is dropped when full
+     */
+    CallQueue(int capacity, boolean bounded) {
+        this.calls = new Call[Math.max(1, capacity)];
+        this.bounded = bounded;
+    }
+
+    /**
+     * Adds a call to the end of the queue.
+     *
+     * @param call Call
+     */
+    void add(Call call) {
+        if (size == calls.length) {
+            if (bounded) {
+                // Drop the oldest call
+                poll();
+            } else {
+                // Grow, unwrapping the ring
+                Call[] grown = new Call[calls.length * 2];
+                for (int index = 0; index < size; index++) {
+                    grown[index] = get(index);
+                }
+                calls = grown;
+                head = 0;
+            }
+        }
+        calls[(head + size++) % calls.length] = call;
+    }
+
+    /**
+     * Returns the first call without removing it.
+     *
+     * @return First call, or null when empty
+     */
+    Call peek() {
+        return size == 0 ? null : calls[head];
+    }
+
+    /**
+     * Removes and returns the first call.
+     *
+     * @return First call, or null when empty
+     */
+    Call poll() {
+        if (size == 0)
+            return null;
+        Call call = calls[head];
+        calls[head] = null;
+        head = (head + 1) % calls.length;
+        size--;
+        return call;
+    }
+
+    /**
+     * Returns a call by its position in the queue.
+     *
+     * @param index Position
+     * @return Call
+     */
+    Call get(int index) {
+        return calls[(head + index) % calls.length];
+    }
+
+    /**
+     * Replaces a call by its position in the queue.
+     *
+     * @param index Position
+     * @param call  Call
+     */
+    void set(int index, Call call) {
+        calls[(head + index) % calls.length] = call;
+    }
+
+    /**
+     * Removes all calls after the given amount of calls.
+     *
+     * @param size New size
+     */
+    void truncate(int size) {
+        while (this.size > size) {
+            set(--this.size, null);
+        }
+    }
+
+    /**
+     * Removes all calls.
+     */
+    void clear() {
+        Arrays.fill(calls, null);
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Getter for size.
+     *
+     * @return The amount of queued calls
+     */
+    int size() {
+        return size;
+    }
+}
@@ -10,7 +10,15 @@ import com.ga2230.shleam.base.structure.Module;
 import com.ga2230.shleam.base.structure.Result;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 
 /**
  * This is used to run Shleam scripts.
@@ -20,7 +28,6 @@ public class Runtime extends Module {
     // Runtime constants
     private static final String CALL_SEPARATOR = "\n";
     private static final String LIST_SEPARATOR = ", ";
-    private static final String ARGUMENT_SEPARATOR = " ";
     private static final String COMMENT_INDICATOR = "//";
 
     // Dictionary names
@@ -29,10 +36,26 @@ public class Runtime extends Module {
     private static final String DICTIONARY_CURRENT_BLOCK = "current_block";
     private static final String DICTIONARY_CURRENT_ASYNC = "current_async";
 
+    // Amount of finished calls to remember
+    private static final int FINISHED_CAPACITY = 64;
+
     // Call queue
-    private ArrayList<String> awaitingQueue = new ArrayList<>();
-    private ArrayList<String> asyncQueue = new ArrayList<>();
-    private ArrayList<String> finishedQueue = new ArrayList<>();
+    private CallQueue awaitingQueue = new CallQueue();
+    private CallQueue asyncQueue = new CallQueue();
+    private CallQueue finishedQueue = new CallQueue(FINISHED_CAPACITY, true);
+
+    // Script loaded by another thread, waiting to be picked up by the next tick
+    private AtomicReference<ArrayList<Call>> loadedScript = new AtomicReference<>();
+
+    // Whether the async queue's membership changed since its telemetry was updated
+    private boolean asyncChanged = false;
+
+    // Parallel execution (null executor means async calls are executed on the caller's thread)
+    private ExecutorService executor = null;
+    private long deadline = 0;
+    private HashMap<Module, ArrayList<Call>> groups = new HashMap<>();
+    private HashMap<Module, Future<?>> busy = new HashMap<>();
+    private ArrayList<Future<?>> submitted = new ArrayList<>();
 
     // Parent module for running calls on.
     private Module parent;
@@ -50,14 +73,29 @@ public class Runtime extends Module {
         register("load", new Function() {
             @Override
             public Result execute(String parameter) throws Exception {
-                // Clear queues
-                awaitingQueue.clear();
-                asyncQueue.clear();
-                finishedQueue.clear();
                 // Parse script
-                String[] functionCalls = parameter.split(CALL_SEPARATOR);
-                // Add all function calls to the queue
-                awaitingQueue.addAll(Arrays.asList(functionCalls));
+                String[] lines = parameter.split(CALL_SEPARATOR);
+                // Compile all function calls before touching the queues
+                ArrayList<Call> calls = new ArrayList<>();
+                for (int lineIndex = 0; lineIndex < lines.length; lineIndex++) {
+                    String line = lines[lineIndex].trim();
+                    // Skip empty lines and comment lines
+                    if (line.length() == 0 || line.startsWith(COMMENT_INDICATOR))
+                        continue;
+                    try {
+                        calls.add(Call.compile(line, Runtime.this.parent));
+                    } catch (IllegalArgumentException compileException) {
+                        // Update the error (for telemetry)
+                        String error = "Line " + (lineIndex + 1) + ": " + compileException.getMessage();
+                        set(DICTIONARY_ERROR, error);
+                        // Return a failed result, keeping the previous script
+                        return Result.notFinished(error);
+                    }
+                }
+                // Hand the script over to the thread calling next()
+                loadedScript.set(calls);
+                // Clear the previous error
+                set(DICTIONARY_ERROR, null);
                 // Update the module's state
                 set(DICTIONARY_STATE, "loaded");
                 // Return a successful result
@@ -66,49 +104,111 @@ public class Runtime extends Module {
         });
     }
 
+    /**
+     * Enables parallel execution of async calls on the given executor (for example a ForkJoinPool).
+     * <p>
+     * Every tick, the async calls of each module are executed one after another as a single task, so calls that target
+     * the same module never run concurrently. {@link #next()} then waits up to the given deadline for the tasks, and
+     * gathers their results. Calls that miss the deadline keep running, and are gathered on a later tick.
+     *
+     * @param executor Executor
+     * @param deadline Maximum time to wait for the async calls every tick
+     * @param unit     Deadline unit
+     */
+    public void parallel(ExecutorService executor, long deadline, TimeUnit unit) {
+        this.executor = executor;
+        this.deadline = unit.toNanos(deadline);
+    }
+
+    /**
+     * Disables parallel execution, executing async calls on the caller's thread again.
+     */
+    public void serial() {
+        this.executor = null;
+    }
+
     /**
      * Scans the queues once more and executes the functions.
+     * Must always be called from the same thread (usually the control loop), while scripts may be loaded from any thread.
      */
     public void next() {
+        // Hold the tree's lock, so that atomic batches never interleave with the tick
+        Lock lock = getLock();
+        lock.lock();
         try {
+            // Pick up a newly loaded script
+            ArrayList<Call> script = loadedScript.getAndSet(null);
+            if (script != null) {
+                // Cancel the previous script's pending asynchronous functions
+                for (int callIndex = 0; callIndex < awaitingQueue.size(); callIndex++) {
+                    awaitingQueue.get(callIndex).cancel();
+                }
+                for (int callIndex = 0; callIndex < asyncQueue.size(); callIndex++) {
+                    asyncQueue.get(callIndex).cancel();
+                }
+                // Clear queues
+                awaitingQueue.clear();
+                asyncQueue.clear();
+                finishedQueue.clear();
+                // Add all function calls to the queue
+                for (Call call : script) {
+                    awaitingQueue.add(call);
+                }
+                asyncChanged = true;
+            }
             // Make sure the awaiting queue is not empty yet
             if (awaitingQueue.size() > 0) {
                 // Read the first call in the queue
-                String currentCall = awaitingQueue.get(0);
-                // Make sure the current call is not an empty line or a comment line
-                if (currentCall.length() > 0 && !currentCall.startsWith(COMMENT_INDICATOR)) {
-                    // Determine type
-                    boolean isAsync = currentCall.startsWith("a");
-                    // Execute and move queues
-                    if (isAsync) {
-                        // Move to the async queue
-                        asyncQueue.add(awaitingQueue.remove(0));
-                    } else {
-                        // Update the current blocking function (for telemetry)
-                        set(DICTIONARY_CURRENT_BLOCK, currentCall);
-                        // Execute the call and check the result
-                        Result result = perform(currentCall);
-                        // Check if the function is finished
-                        if (result.isFinished())
-                            // Move queues
-                            finishedQueue.add(awaitingQueue.remove(0));
-                    }
-                } else {
-                    awaitingQueue.remove(0);
+                Call currentCall = awaitingQueue.peek();
+                // Execute and move queues
+                if (currentCall.isAsync()) {
+                    // Move to the async queue
+                    asyncQueue.add(awaitingQueue.poll());
+                    asyncChanged = true;
+                } else if (!isBusy(currentCall.getModule())) {
+                    // Update the current blocking function (for telemetry)
+                    set(DICTIONARY_CURRENT_BLOCK, currentCall.toString());
+                    // Execute the call and check the result
+                    Result result = currentCall.execute();
+                    // Check if the function is finished
+                    if (result.isFinished())
+                        // Move queues
+                        finishedQueue.add(awaitingQueue.poll());
                 }
             }
 
+            // Execute the async functions on the worker threads
+            if (asyncQueue.size() > 0 && executor != null)
+                executeParallel();
+
             // Make sure the async queue is not empty yet
             if (asyncQueue.size() > 0) {
-                // Execute the functions
+                // Execute (or gather) the functions, compacting the queue in place
+                int remaining = 0;
                 for (int callIndex = 0; callIndex < asyncQueue.size(); callIndex++) {
-                    // Execute the call and check the result
-                    Result result = perform(asyncQueue.get(callIndex));
+                    Call call = asyncQueue.get(callIndex);
+                    // Execute (or gather) the call, keeping it queued if it fails
+                    Result result = null;
+                    try {
+                        result = executor == null ? call.execute() : call.collect();
+                    } catch (Exception thrownException) {
+                        // Update the error (for telemetry)
+                        set(DICTIONARY_ERROR, thrownException.toString());
+                    }
                     // Check if the function is finished
-                    if (result.isFinished())
+                    if (result != null && result.isFinished()) {
                         // Move queues
-                        finishedQueue.add(asyncQueue.remove(callIndex));
+                        finishedQueue.add(call);
+                        asyncChanged = true;
+                    } else {
+                        // Keep the call
+                        asyncQueue.set(remaining++, call);
+                    }
                 }
+                asyncQueue.truncate(remaining);
+            }
+            // Update the current async functions (for telemetry) only when they changed
+            if (asyncChanged) {
                 // Create a list of running async functions
                 StringBuilder listBuilder = new StringBuilder();
                 for (int callIndex = 0; callIndex < asyncQueue.size(); callIndex++) {
@@ -116,48 +216,72 @@ public class Runtime extends Module {
                         listBuilder.append(LIST_SEPARATOR);
                     listBuilder.append(asyncQueue.get(callIndex));
                 }
-                // Update the current async functions (for telemetry)
                 set(DICTIONARY_CURRENT_ASYNC, listBuilder.toString());
+                asyncChanged = false;
             }
             // Update the module's state
             set(DICTIONARY_STATE, asyncQueue.size() == 0 && awaitingQueue.size() == 0 ? "finished" : "not-finished");
         } catch (Exception thrownException) {
             // Update the error (for telemetry)
             set(DICTIONARY_ERROR, thrownException.toString());
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Executes a function call and returns the result.
+     * Submits the async calls of every idle module as a single task, and waits for the tasks until the deadline.
      *
-     * @param call Function call
-     * @return Result object
+     * @throws InterruptedException Thrown exception
      */
-    private Result perform(String call) throws Exception {
-        /*
-            Example for a function call:
-            a master print Hello World
-            ^ Call type
-              ^^^^^^ Module ID
-                     ^^^^^ Function call
-                           ^^^^^^^^^^^ Parameter
-         */
-        String[] callType = call.split(ARGUMENT_SEPARATOR, 2);
-        String[] moduleID = callType[1].split(ARGUMENT_SEPARATOR, 2);
-        String[] functionCall = moduleID[1].split(ARGUMENT_SEPARATOR, 2);
-        // Find module
-        Module module = this.parent.descendant(moduleID[0]);
-        // Make sure module exists
-        if (module != null) {
-            // Execute the call
-            Result result = module.execute(functionCall[0], functionCall.length > 1 ? functionCall[1] : null);
-            // Do something
-            // Return result
-            return result;
-        } else {
-            // Fallback "finished" for a failed find.
-            return Result.finished("Module not found");
+    private void executeParallel() throws InterruptedException {
+        long end = System.nanoTime() + deadline;
+        // Group the calls by module
+        for (ArrayList<Call> group : groups.values()) {
+            group.clear();
+        }
+        for (int callIndex = 0; callIndex < asyncQueue.size(); callIndex++) {
+            Call call = asyncQueue.get(callIndex);
+            // Skip modules that are still busy with a previous tick's calls, and calls that finished late but were not collected yet
+            if (!isBusy(call.getModule()) && !call.hasOutcome())
+                groups.computeIfAbsent(call.getModule(), module -> new ArrayList<>()).add(call);
+        }
+        // Submit a task per module
+        submitted.clear();
+        for (Map.Entry<Module, ArrayList<Call>> entry : groups.entrySet()) {
+            if (entry.getValue().isEmpty())
+                continue;
+            Call[] calls = entry.getValue().toArray(new Call[0]);
+            Future<?> future = executor.submit(() -> {
+                for (Call call : calls) {
+                    call.run();
+                }
+            });
+            busy.put(entry.getKey(), future);
+            submitted.add(future);
         }
+        // Wait for the tasks until the deadline
+        for (Future<?> future : submitted) {
+            try {
+                future.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException timeoutException) {
+                // Gather whatever finished, the rest is gathered on a later tick
+                break;
+            } catch (ExecutionException ignored) {
+                // Failures are stored in the calls themselves
+            }
+        }
+    }
+
+    /**
+     * Checks whether a module is still executing calls on a worker thread.
+     *
+     * @param module Module
+     * @return Is busy
+     */
+    private boolean isBusy(Module module) {
+        Future<?> future = busy.get(module);
+        return future != null && !future.isDone();
     }
 
     /**
@@ -166,7 +290,12 @@ public class Runtime extends Module {
      * @param call Function call
      */
     public void enqueue(String call) {
-        // Add call to the awaiting queue
-        awaitingQueue.add(call);
+        try {
+            // Compile and add call to the awaiting queue
+            awaitingQueue.add(Call.compile(call, this.parent));
+        } catch (IllegalArgumentException compileException) {
+            // Update the error (for telemetry)
+            set(DICTIONARY_ERROR, compileException.getMessage());
+        }
     }
 }
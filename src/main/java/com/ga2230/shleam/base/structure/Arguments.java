@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+/**
+ * This class is used to hold the decoded arguments of a {@link TypedFunction} call, in primitive slots that are reused between calls.
+ */
+public class Arguments {
+
+    private long[] integers;
+    private double[] decimals;
+    private String[] strings;
+
+    /**
+     * Package-private constructor, arguments are created by their signature.
+     *
+     * @param length Amount of arguments
+     */
+    Arguments(int length) {
+        this.integers = new long[length];
+        this.decimals = new double[length];
+        this.strings = new String[length];
+    }
+
+    /**
+     * Getter for an int argument.
+     *
+     * @param index Argument index
+     * @return The argument
+     */
+    public int getInt(int index) {
+        return (int) integers[index];
+    }
+
+    /**
+     * Getter for a long argument.
+     *
+     * @param index Argument index
+     * @return The argument
+     */
+    public long getLong(int index) {
+        return integers[index];
+    }
+
+    /**
+     * Getter for a double argument.
+     *
+     * @param index Argument index
+     * @return The argument
+     */
+    public double getDouble(int index) {
+        return decimals[index];
+    }
+
+    /**
+     * Getter for a boolean argument.
+     *
+     * @param index Argument index
+     * @return The argument
+     */
+    public boolean getBoolean(int index) {
+        return integers[index] != 0;
+    }
+
+    /**
+     * Getter for a string argument.
+     *
+     * @param index Argument index
+     * @return The argument
+     */
+    public String getString(int index) {
+        return strings[index];
+    }
+
+    /**
+     * Integer slot setter.
+     *
+     * @param index Argument index
+     * @param value Value
+     */
+    void setInteger(int index, long value) {
+        integers[index] = value;
+    }
+
+    /**
+     * Decimal slot setter.
+     *
+     * @param index Argument index
+     * @param value Value
+     */
+    void setDecimal(int index, double value) {
+        decimals[index] = value;
+    }
+
+    /**
+     * String slot setter.
+     *
+     * @param index Argument index
+     * @param value Value
+     */
+    void setString(int index, String value) {
+        strings[index] = value;
+    }
+}
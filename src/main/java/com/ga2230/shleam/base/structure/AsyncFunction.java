@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+import com.ga2230.shleam.base.utils.TimerWheel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This interface is used to define a registerable function that completes asynchronously (e.g. waits for hardware or a vision result).
+ * Connections send the response when the future completes, and the runtime keeps the call pending until then, without polling the function again.
+ * Synchronous callers of {@link #execute(String)} block until the future completes.
+ * <p>
+ * Calls that don't complete within {@link #getTimeout()} fail with a {@link java.util.concurrent.TimeoutException}.
+ */
+public interface AsyncFunction extends Function {
+
+    // Default time limit of a call, in milliseconds
+    long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    CompletableFuture<Result> submit(String parameter) throws Exception;
+
+    /**
+     * Returns the time limit of a call, after which its future fails. Override it for functions that wait longer.
+     *
+     * @return Time limit in milliseconds, where 0 means no limit
+     */
+    default long getTimeout() {
+        return DEFAULT_TIMEOUT;
+    }
+
+    @Override
+    default Result execute(String parameter) throws Exception {
+        try {
+            // Wait for the result, until the time limit
+            return TimerWheel.timeout(submit(parameter), getTimeout(), TimeUnit.MILLISECONDS).get();
+        } catch (ExecutionException thrownException) {
+            // Unwrap the cause
+            if (thrownException.getCause() instanceof Exception)
+                throw (Exception) thrownException.getCause();
+            throw thrownException;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+import com.ga2230.shleam.base.utils.TimerWheel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This interface is used to define a registerable function that takes typed arguments and completes asynchronously,
+ * like an {@link AsyncFunction}. Every call gets an arguments object of its own, which may be used until the returned future completes.
+ */
+public interface AsyncTypedFunction extends TypedFunction {
+
+    CompletableFuture<Result> submit(Arguments arguments) throws Exception;
+
+    /**
+     * Returns the time limit of a call, like {@link AsyncFunction#getTimeout()}.
+     *
+     * @return Time limit in milliseconds, where 0 means no limit
+     */
+    default long getTimeout() {
+        return AsyncFunction.DEFAULT_TIMEOUT;
+    }
+
+    @Override
+    default Result execute(Arguments arguments) throws Exception {
+        try {
+            // Wait for the result, until the time limit
+            return TimerWheel.timeout(submit(arguments), getTimeout(), TimeUnit.MILLISECONDS).get();
+        } catch (ExecutionException thrownException) {
+            // Unwrap the cause
+            if (thrownException.getCause() instanceof Exception)
+                throw (Exception) thrownException.getCause();
+            throw thrownException;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This is used to look up the modules of a tree by their ID or their dotted path in constant time.
+ * <p>
+ * Every module tree shares a single index. Lookups never lock, while updates are made by {@link Module#adopt(Module)}
+ * and {@link Module#abandon(Module)} under a tree-wide lock.
+ */
+class Index {
+
+    // Path separator
+    static final String PATH_SEPARATOR = ".";
+
+    // Lookup tables, keyed by normalized (lower case) ID or path
+    private final ConcurrentHashMap<String, Module> ids = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Module> paths = new ConcurrentHashMap<>();
+
+    // Tree-wide lock for operations that must not interleave with the control loop
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Getter for lock.
+     *
+     * @return The tree-wide lock
+     */
+    ReentrantLock getLock() {
+        return lock;
+    }
+
+    /**
+     * Normalizes an ID or a path for lookup.
+     *
+     * @param key ID or path
+     * @return Normalized key
+     */
+    static String normalize(String key) {
+        return key.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Finds a module by its ID or dotted path.
+     *
+     * @param key ID or path
+     * @return Module, or null when not found
+     */
+    Module find(String key) {
+        // Try an exact match first, which saves normalizing keys that are already lower case
+        Module module = lookup(key);
+        if (module == null) {
+            // Normalize and try again
+            String normalized = normalize(key);
+            if (!normalized.equals(key))
+                module = lookup(normalized);
+        }
+        return module;
+    }
+
+    /**
+     * Finds a module by its normalized ID or dotted path.
+     *
+     * @param key Normalized ID or path
+     * @return Module, or null when not found
+     */
+    private Module lookup(String key) {
+        Module module = ids.get(key);
+        if (module == null && key.contains(PATH_SEPARATOR))
+            module = paths.get(key);
+        return module;
+    }
+
+    /**
+     * Checks whether an ID is taken.
+     *
+     * @param id ID
+     * @return Is taken
+     */
+    boolean contains(String id) {
+        return ids.containsKey(normalize(id));
+    }
+
+    /**
+     * Adds a module to the index.
+     *
+     * @param id     ID
+     * @param path   Dotted path
+     * @param module Module
+     */
+    void put(String id, String path, Module module) {
+        ids.put(normalize(id), module);
+        paths.put(normalize(path), module);
+    }
+
+    /**
+     * Removes a module from the index.
+     *
+     * @param id   ID
+     * @param path Dotted path
+     */
+    void remove(String id, String path) {
+        ids.remove(normalize(id));
+        paths.remove(normalize(path));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+import com.ga2230.shleam.base.utils.JSONBuilder;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This is used to count the calls of a single function and to record their latencies.
+ * <p>
+ * Latencies are kept in a fixed-size histogram with 8 linear buckets per power of two (so percentiles are accurate to
+ * about 12%), and recording only uses atomic increments, so it is safe and cheap in the control loop.
+ */
+public class Metrics {
+
+    // Histogram layout: values below 8 nanoseconds are exact, larger values are split into 8 buckets per power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    // Reported percentiles
+    private static final double MEDIAN = 0.5;
+    private static final double TAIL = 0.99;
+
+    // Nanoseconds per reported unit (microseconds)
+    private static final double UNIT = 1000.0;
+
+    // Counters
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong maximum = new AtomicLong();
+
+    // Latency histogram
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Executes a function and records the call.
+     *
+     * @param function  Function
+     * @param parameter Parameter
+     * @return Result object
+     * @throws Exception Function exception
+     */
+    public Result measure(Function function, String parameter) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return function.execute(parameter);
+        } catch (Exception thrownException) {
+            errors.incrementAndGet();
+            throw thrownException;
+        } finally {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Submits an asynchronous function, and records the call once its future completes.
+     *
+     * @param function  Asynchronous function
+     * @param parameter Parameter
+     * @return Result future
+     * @throws Exception Function exception
+     */
+    public CompletableFuture<Result> measure(AsyncFunction function, String parameter) throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<Result> future;
+        try {
+            future = function.submit(parameter);
+        } catch (Exception thrownException) {
+            errors.incrementAndGet();
+            record(System.nanoTime() - start);
+            throw thrownException;
+        }
+        // Record the completion, counting failures (but not cancellations) as errors
+        future.whenComplete((result, thrownException) -> {
+            if (thrownException != null && !(thrownException instanceof CancellationException))
+                errors.incrementAndGet();
+            record(System.nanoTime() - start);
+        });
+        return future;
+    }
+
+    /**
+     * Records a call.
+     *
+     * @param nanoseconds Call latency
+     */
+    void record(long nanoseconds) {
+        long latency = Math.max(0, nanoseconds);
+        calls.incrementAndGet();
+        buckets.incrementAndGet(bucket(latency));
+        maximum.accumulateAndGet(latency, Math::max);
+    }
+
+    /**
+     * Clears all counters.
+     */
+    public void reset() {
+        calls.set(0);
+        errors.set(0);
+        maximum.set(0);
+        for (int index = 0; index < BUCKETS; index++) {
+            buckets.set(index, 0);
+        }
+    }
+
+    /**
+     * Getter for calls.
+     *
+     * @return Amount of calls
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Getter for errors.
+     *
+     * @return Amount of calls that threw an exception
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Estimates a latency percentile.
+     *
+     * @param quantile Percentile, between 0 and 1
+     * @return Latency in nanoseconds (the upper bound of its bucket, never above the maximum)
+     */
+    public long percentile(double quantile) {
+        // Count the recorded calls
+        long count = 0;
+        for (int index = 0; index < BUCKETS; index++) {
+            count += buckets.get(index);
+        }
+        if (count == 0)
+            return 0;
+        // Find the bucket holding the requested rank
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long cumulative = 0;
+        for (int index = 0; index < BUCKETS; index++) {
+            cumulative += buckets.get(index);
+            if (cumulative >= rank)
+                return Math.min(upperBound(index), maximum.get());
+        }
+        return maximum.get();
+    }
+
+    /**
+     * Writes the metrics as a JSON object, with latencies in microseconds.
+     *
+     * @param builder Builder
+     * @return Builder
+     */
+    StringBuilder write(StringBuilder builder) {
+        builder.append("{\"calls\":").append(calls.get());
+        builder.append(",\"errors\":").append(errors.get());
+        JSONBuilder.number(builder.append(",\"p50\":"), percentile(MEDIAN) / UNIT);
+        JSONBuilder.number(builder.append(",\"p99\":"), percentile(TAIL) / UNIT);
+        JSONBuilder.number(builder.append(",\"max\":"), maximum.get() / UNIT);
+        return builder.append('}');
+    }
+
+    /**
+     * Finds the histogram bucket of a latency.
+     *
+     * @param value Latency
+     * @return Bucket index
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) | subBucket;
+    }
+
+    /**
+     * Calculates the largest latency that falls in a histogram bucket.
+     *
+     * @param index Bucket index
+     * @return Latency
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long lower = (long) (SUB_BUCKETS | (index & (SUB_BUCKETS - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
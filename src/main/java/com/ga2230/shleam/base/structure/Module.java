@@ -5,21 +5,76 @@
 
 package com.ga2230.shleam.base.structure;
 
+import com.ga2230.shleam.base.utils.JSONBuilder;
 import com.ga2230.shleam.base.utils.Logger;
-import org.json.JSONObject;
+import com.ga2230.shleam.base.utils.TimerWheel;
 
-import java.util.ArrayList;
+import java.util.AbstractMap;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 
+/**
+ * This is the base class of every module in the tree.
+ * <p>
+ * A module may be written by the control loop while other threads (such as clients) read it. Children and functions
+ * are copy-on-write or concurrent, and the internal dictionary is guarded by a seqlock: writers never wait, and readers
+ * retry until they read the whole dictionary without a write happening meanwhile.
+ */
 public class Module {
 
+    // Tree-wide lock for adopting and abandoning
+    private static final Object TREE_LOCK = new Object();
+
+    // Version clock for the internal dictionaries
+    private static final AtomicLong VERSION = new AtomicLong();
+
+    // Telemetry delta keys
+    private static final String DELTA_VERSION = "version";
+    private static final String DELTA_TELEMETRY = "telemetry";
+
+    // Reusable telemetry buffers, one per serializing thread
+    private static final ThreadLocal<StringBuilder> TELEMETRY_BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+
+    // Amount of failed read attempts before a reader starts yielding
+    private static final int READ_SPINS = 64;
+
     // Internal dictionary
-    protected HashMap<String, String> variables = new HashMap<>();
+    private final ConcurrentHashMap<String, Variable> dictionary = new ConcurrentHashMap<>();
+
+    /**
+     * String view of the internal dictionary, kept for subclasses written against the old {@code HashMap} field.
+     * Writes go through {@link #set(String, String)}, so they are stamped and show up in telemetry deltas.
+     *
+     * @deprecated Use {@link #set(String, String)} and {@link #get(String)} instead
+     */
+    @Deprecated
+    protected final Map<String, String> variables = new Variables();
+
+    // Internal dictionary seqlock
+    private final AtomicLong writesBegun = new AtomicLong();
+    private final AtomicLong writesCompleted = new AtomicLong();
 
     // Internal variables
     private String id = "master";
-    private ArrayList<Module> children = new ArrayList<>();
-    private HashMap<String, Function> functions = new HashMap<>();
+    private List<Module> children = new CopyOnWriteArrayList<>();
+    private ConcurrentHashMap<String, Function> functions = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, Metrics> metrics = new ConcurrentHashMap<>();
+
+    // Tree structure
+    private volatile Module parent = null;
+    private volatile Index index = new Index();
+    private String path;
+    private long adoptedVersion = 0;
+    private volatile long abandonedVersion = 0;
 
     /**
      * Default constructor, with ID.
@@ -29,30 +84,47 @@ public class Module {
     public Module(String id) {
         // Set the ID
         this.id = id;
+        // Index ourselves
+        reindex(this.index);
         // Register functions
         // Returns a full (recursive) telemetry JSON string.
-        register("telemetry", new Function() {
+        register("telemetry", new BuiltInFunction() {
             @Override
             public Result execute(String parameter) throws Exception {
-                return Result.finished(createFromModule(Module.this).toString());
+                // Reuse the thread's buffer
+                StringBuilder builder = TELEMETRY_BUFFER.get();
+                builder.setLength(0);
+                // Write the whole tree
+                writeModule(builder, Module.this, 0);
+                // Return result
+                return Result.finished(builder.toString());
             }
+        });
 
-            private JSONObject createFromModule(Module module) {
-                // Create master object
-                JSONObject object = new JSONObject();
-                // Iterate through dictionary
-                module.variables.forEach(object::put);
-                // Iterate through children
-                for (Module child : module.children) {
-                    object.put(child.getID(), createFromModule(child));
-                }
+        // Returns a (recursive) telemetry JSON string of the values changed since the given version, along with the current version.
+        register("telemetry_delta", new BuiltInFunction() {
+            @Override
+            public Result execute(String parameter) throws Exception {
+                // Parse the client's last version
+                long since = parameter == null || parameter.isEmpty() ? 0 : Long.parseLong(parameter.trim());
+                // Read the current version before collecting, so that nothing changed meanwhile is skipped next time
+                long version = VERSION.get();
+                // Reuse the thread's buffer
+                StringBuilder builder = TELEMETRY_BUFFER.get();
+                builder.setLength(0);
+                // Write the delta object
+                builder.append('{');
+                JSONBuilder.quote(builder, DELTA_VERSION).append(':').append(version).append(',');
+                JSONBuilder.quote(builder, DELTA_TELEMETRY).append(':');
+                writeModule(builder, Module.this, since);
+                builder.append('}');
                 // Return result
-                return object;
+                return Result.finished(builder.toString());
             }
         });
 
         // Lists all functions and all children
-        register("help", new Function() {
+        register("help", new BuiltInFunction() {
 
             private static final String LINE_SEPARATOR = "\r\n";
 
@@ -66,6 +138,9 @@ public class Module {
                 // List functions
                 Module.this.functions.forEach((key, value) -> {
                     stringBuilder.append(LINE_SEPARATOR).append(" ").append(key);
+                    // Append the signature of typed functions
+                    if (value instanceof SignedFunction)
+                        stringBuilder.append(" ").append(((SignedFunction) value).getSignature());
                 });
                 // Append some UI text
                 stringBuilder.append(LINE_SEPARATOR).append("Adopted children:");
@@ -78,8 +153,36 @@ public class Module {
             }
         });
 
+        // Returns the call counts and latencies (in microseconds) of all functions, or resets them
+        register("metrics", new BuiltInFunction() {
+
+            private static final String RESET = "reset";
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                if (RESET.equals(parameter)) {
+                    // Reset all metrics
+                    for (Metrics value : Module.this.metrics.values()) {
+                        value.reset();
+                    }
+                    return Result.finished("Metrics reset");
+                }
+                // Write all metrics
+                StringBuilder builder = new StringBuilder();
+                builder.append('{');
+                Module.this.metrics.forEach((key, value) -> {
+                    if (builder.length() > 1)
+                        builder.append(',');
+                    value.write(JSONBuilder.quote(builder, key).append(':'));
+                });
+                builder.append('}');
+                // Return result
+                return Result.finished(builder.toString());
+            }
+        });
+
         // Logs text to the system output
-        register("log", new Function() {
+        register("log", new BuiltInFunction() {
             @Override
             public Result execute(String parameter) throws Exception {
                 // Log with logger
@@ -98,6 +201,15 @@ public class Module {
         return this.id;
     }
 
+    /**
+     * Returns the current version of all internal dictionaries, which changes whenever a value changes.
+     *
+     * @return Current version
+     */
+    public static long getVersion() {
+        return VERSION.get();
+    }
+
     /**
      * Writes a value to the internal dictionary.
      *
@@ -105,8 +217,188 @@ public class Module {
      * @param value Value
      */
     protected void set(String name, String value) {
-        // Set the variable
-        this.variables.put(name, value);
+        // Find the variable
+        Variable variable = variable(name);
+        // Set the variable, and stamp it when it changed
+        beginWrite();
+        if (variable.set(value))
+            variable.stamp(VERSION.incrementAndGet());
+        endWrite();
+    }
+
+    /**
+     * Writes a double to the internal dictionary, without allocating once the value was first written.
+     *
+     * @param name  Value name
+     * @param value Value
+     */
+    protected void setDouble(String name, double value) {
+        // Find the variable
+        Variable variable = variable(name);
+        // Set the variable, and stamp it when it changed
+        beginWrite();
+        if (variable.setDouble(value))
+            variable.stamp(VERSION.incrementAndGet());
+        endWrite();
+    }
+
+    /**
+     * Writes a long to the internal dictionary, without allocating once the value was first written.
+     *
+     * @param name  Value name
+     * @param value Value
+     */
+    protected void setLong(String name, long value) {
+        // Find the variable
+        Variable variable = variable(name);
+        // Set the variable, and stamp it when it changed
+        beginWrite();
+        if (variable.setLong(value))
+            variable.stamp(VERSION.incrementAndGet());
+        endWrite();
+    }
+
+    /**
+     * Writes a boolean to the internal dictionary, without allocating once the value was first written.
+     *
+     * @param name  Value name
+     * @param value Value
+     */
+    protected void setBoolean(String name, boolean value) {
+        // Find the variable
+        Variable variable = variable(name);
+        // Set the variable, and stamp it when it changed
+        beginWrite();
+        if (variable.setBoolean(value))
+            variable.stamp(VERSION.incrementAndGet());
+        endWrite();
+    }
+
+    /**
+     * Finds a variable in the internal dictionary, creating it on first use.
+     *
+     * @param name Value name
+     * @return Variable
+     */
+    private Variable variable(String name) {
+        Variable variable = this.dictionary.get(name);
+        if (variable == null)
+            variable = this.dictionary.computeIfAbsent(name, key -> new Variable());
+        return variable;
+    }
+
+    /**
+     * Marks the beginning of a write to the internal dictionary. Writers never wait.
+     */
+    private void beginWrite() {
+        this.writesBegun.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of a write to the internal dictionary.
+     */
+    private void endWrite() {
+        this.writesCompleted.incrementAndGet();
+    }
+
+    /**
+     * Waits until no write to the internal dictionary is in progress, and returns a stamp for {@link #validateRead(long)}.
+     *
+     * @return Read stamp
+     */
+    private long beginRead() {
+        int attempts = 0;
+        while (true) {
+            long begun = this.writesBegun.get();
+            // Make sure every write that began has completed
+            if (this.writesCompleted.get() == begun)
+                return begun;
+            // Back off when a writer takes long
+            if (++attempts > READ_SPINS)
+                Thread.yield();
+        }
+    }
+
+    /**
+     * Checks whether no write to the internal dictionary began since the given stamp, meaning the values read are consistent.
+     *
+     * @param stamp Read stamp
+     * @return Is consistent
+     */
+    private boolean validateRead(long stamp) {
+        return this.writesBegun.get() == stamp;
+    }
+
+    /**
+     * Writes a telemetry JSON object of a module's values that changed after a given version, recursively.
+     * Modules adopted after the given version are written in full, and a version of 0 writes everything.
+     * Unchanged children are left out, values named like a child are shadowed by it, and values cleared after the given
+     * version are written as null.
+     *
+     * @param builder Buffer
+     * @param module  Module
+     * @param since   Version
+     * @return Whether anything was written inside the object
+     */
+    private static boolean writeModule(StringBuilder builder, Module module, long since) {
+        // Check whether the whole module is new
+        long threshold = module.adoptedVersion > since ? 0 : since;
+        // Open the object
+        builder.append('{');
+        int start = builder.length();
+        boolean written;
+        long stamp;
+        // Iterate through dictionary, until it is read without a write happening meanwhile
+        do {
+            builder.setLength(start);
+            written = false;
+            stamp = module.beginRead();
+            for (Map.Entry<String, Variable> entry : module.dictionary.entrySet()) {
+                Variable variable = entry.getValue();
+                // Skip unchanged and shadowed values, and empty values unless they were cleared since the given version
+                if (variable.getVersion() <= threshold || (variable.isEmpty() && threshold == 0) || module.child(entry.getKey()) != null)
+                    continue;
+                if (written)
+                    builder.append(',');
+                JSONBuilder.quote(builder, entry.getKey()).append(':');
+                // Write cleared values as null tombstones
+                if (variable.isEmpty())
+                    builder.append("null");
+                else
+                    variable.write(builder);
+                written = true;
+            }
+        } while (!module.validateRead(stamp));
+        // Iterate through children
+        for (Module child : module.children) {
+            int rollback = builder.length();
+            if (written)
+                builder.append(',');
+            JSONBuilder.quote(builder, child.id).append(':');
+            // Skip unchanged children
+            if (!writeModule(builder, child, threshold) && threshold != 0) {
+                builder.setLength(rollback);
+                continue;
+            }
+            written = true;
+        }
+        // Close the object
+        builder.append('}');
+        return written;
+    }
+
+    /**
+     * Finds a direct child by its ID.
+     *
+     * @param id Child ID
+     * @return Child module, or null when not found
+     */
+    private Module child(String id) {
+        for (Module child : this.children) {
+            if (child.id.equals(id))
+                return child;
+        }
+        return null;
     }
 
     /**
@@ -128,17 +420,35 @@ public class Module {
      */
     protected String get(String name, String fallback) {
         // Check if we have the value
-        if (this.variables.containsKey(name))
-            // Return the value
-            return this.variables.get(name);
-        // Return the fallback
-        return fallback;
+        Variable variable = this.dictionary.get(name);
+        if (variable == null)
+            // Return the fallback
+            return fallback;
+        // Read the value, until it is read without a write happening meanwhile
+        String value;
+        long stamp;
+        do {
+            stamp = beginRead();
+            value = variable.getValue();
+        } while (!validateRead(stamp));
+        // Return the value
+        return value;
+    }
+
+    /**
+     * Returns the tree-wide lock, shared by all modules of the tree.
+     * The control loop holds it while it ticks, and atomic batches hold it while they execute, so they never interleave.
+     *
+     * @return Tree-wide lock
+     */
+    public Lock getLock() {
+        return this.index.getLock();
     }
 
     /**
-     * Searches for a descendant with the given ID recursively.
+     * Searches for a descendant with the given ID, or the given dotted path (e.g. "robot.runtime").
      *
-     * @param id Descendant ID
+     * @param id Descendant ID or path
      * @return Descendant module
      */
     public Module descendant(String id) {
@@ -148,12 +458,11 @@ public class Module {
         // Make sure the call is not for "master"
         if (id.equalsIgnoreCase("master"))
             return this;
-        // Search through
-        for (Module child : this.children) {
-            // Search
-            Module result = child.descendant(id);
-            // Search succeeded?
-            if (result != null)
+        // Look up the tree's index
+        Module result = this.index.find(id);
+        // Make sure the result is one of our descendants
+        for (Module ancestor = result; ancestor != null; ancestor = ancestor.parent) {
+            if (ancestor == this)
                 return result;
         }
         // Fallback null when not found
@@ -169,13 +478,13 @@ public class Module {
      * @throws Exception Thrown exception
      */
     public Result execute(String functionName, String parameter) throws Exception {
+        // Read the function
+        Function function = this.functions.get(functionName);
         // Make sure it exists
-        if (this.functions.containsKey(functionName)) {
-            // Read the function
-            Function function = this.functions.get(functionName);
-            // Execute the function
-            Result result = function.execute(parameter);
-            // Do something maybe
+        if (function != null) {
+            // Execute the function, recording the call
+            Metrics metrics = this.metrics.get(functionName);
+            Result result = metrics == null ? function.execute(parameter) : metrics.measure(function, parameter);
             // Return the result
             return result;
         }
@@ -183,6 +492,63 @@ public class Module {
         return null;
     }
 
+    /**
+     * Executes a registered function without waiting for asynchronous functions to complete.
+     * Synchronous functions are executed immediately, and their result is returned as a completed future.
+     * Asynchronous functions fail once their time limit passes.
+     *
+     * @param functionName Function name
+     * @param parameter    Parameter
+     * @return Result future, completed with null when the function does not exist
+     * @throws Exception Function exception
+     */
+    public CompletableFuture<Result> submit(String functionName, String parameter) throws Exception {
+        // Read the function
+        Function function = this.functions.get(functionName);
+        // Make sure it exists
+        if (function == null)
+            return CompletableFuture.completedFuture(null);
+        // Submit asynchronous functions
+        Metrics metrics = this.metrics.get(functionName);
+        if (function instanceof AsyncFunction) {
+            AsyncFunction asyncFunction = (AsyncFunction) function;
+            return TimerWheel.timeout(metrics == null ? asyncFunction.submit(parameter) : metrics.measure(asyncFunction, parameter), asyncFunction.getTimeout(), TimeUnit.MILLISECONDS);
+        }
+        // Execute everything else
+        return CompletableFuture.completedFuture(metrics == null ? function.execute(parameter) : metrics.measure(function, parameter));
+    }
+
+    /**
+     * Finds a registered function by its function name.
+     *
+     * @param functionName Function name
+     * @return Function interface, or null when not found
+     */
+    public Function function(String functionName) {
+        return this.functions.get(functionName);
+    }
+
+    /**
+     * Checks whether a function is one of the functions every module has (e.g. "telemetry" and "help"), which only
+     * read the module tree and never block, rather than a function registered by a subclass.
+     *
+     * @param functionName Function name
+     * @return Whether the function is built in
+     */
+    public boolean isBuiltIn(String functionName) {
+        return this.functions.get(functionName) instanceof BuiltInFunction;
+    }
+
+    /**
+     * Finds the call metrics of a registered function by its function name.
+     *
+     * @param functionName Function name
+     * @return Metrics, or null when not found
+     */
+    public Metrics metrics(String functionName) {
+        return this.metrics.get(functionName);
+    }
+
     /**
      * Registers a new child module.
      *
@@ -190,8 +556,23 @@ public class Module {
      * @return Child module
      */
     protected Module adopt(Module child) {
-        if (!this.children.contains(child))
-            this.children.add(child);
+        synchronized (TREE_LOCK) {
+            if (!this.children.contains(child)) {
+                // Make sure the child is not a part of another tree
+                if (child.parent != null)
+                    throw new IllegalArgumentException("Module \"" + child.getID() + "\" is already adopted by \"" + child.parent.getID() + "\"");
+                // Make sure none of the IDs are taken in our tree
+                child.forEachModule(module -> {
+                    if (this.index.contains(module.id))
+                        throw new IllegalArgumentException("Duplicate module ID \"" + module.id + "\"");
+                });
+                // Attach the child
+                this.children.add(child);
+                child.parent = this;
+                // Index the child's subtree in our tree
+                child.reindex(this.index);
+            }
+        }
         return child;
     }
 
@@ -202,11 +583,100 @@ public class Module {
      * @return Child module
      */
     protected Module abandon(Module child) {
-        if (this.children.contains(child))
-            this.children.remove(child);
+        synchronized (TREE_LOCK) {
+            if (this.children.contains(child)) {
+                // Remove the child's subtree from our tree
+                child.forEachModule(module -> this.index.remove(module.id, module.path));
+                // Detach the child
+                this.children.remove(child);
+                child.parent = null;
+                this.abandonedVersion = VERSION.incrementAndGet();
+                // Make the child the root of its own tree
+                child.reindex(new Index());
+            }
+        }
         return child;
     }
 
+    /**
+     * Adds this module and its descendants to an index, recalculating their paths.
+     *
+     * @param index Tree index
+     */
+    private void reindex(Index index) {
+        this.index = index;
+        this.adoptedVersion = VERSION.incrementAndGet();
+        this.path = this.parent == null ? this.id : this.parent.path + Index.PATH_SEPARATOR + this.id;
+        this.index.put(this.id, this.path, this);
+        for (Module child : this.children) {
+            child.reindex(index);
+        }
+    }
+
+    /**
+     * Visits the values of this module and its descendants that changed after a given version, including values that
+     * were cleared. Modules adopted after the given version are visited in full, and a version of 0 visits everything.
+     * Values are read one by one, so this should be called by the thread that writes them (usually the control loop).
+     *
+     * @param since   Version
+     * @param visitor Visitor
+     */
+    public void forEachChange(long since, VariableVisitor visitor) {
+        // Check whether the whole module is new
+        long threshold = this.adoptedVersion > since ? 0 : since;
+        // Visit the changed values
+        for (Map.Entry<String, Variable> entry : this.dictionary.entrySet()) {
+            if (entry.getValue().getVersion() > threshold)
+                visitor.visit(this, entry.getKey(), entry.getValue());
+        }
+        // Visit the children
+        for (Module child : this.children) {
+            child.forEachChange(threshold, visitor);
+        }
+    }
+
+    /**
+     * Returns whether anything in this module or its descendants changed after a given version, including values that
+     * were cleared and modules that were adopted or abandoned. Nothing is allocated, and the walk stops at the first change.
+     *
+     * @param since Version
+     * @return Whether the module's telemetry changed
+     */
+    public boolean hasChangedSince(long since) {
+        if (this.adoptedVersion > since || this.abandonedVersion > since)
+            return true;
+        for (Variable variable : this.dictionary.values()) {
+            if (variable.getVersion() > since)
+                return true;
+        }
+        for (Module child : this.children) {
+            if (child.hasChangedSince(since))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Path getter.
+     *
+     * @return Dotted path from the tree's root (e.g. "robot.runtime")
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Runs an action on this module and all of its descendants.
+     *
+     * @param action Action
+     */
+    private void forEachModule(Consumer<Module> action) {
+        action.accept(this);
+        for (Module child : this.children) {
+            child.forEachModule(action);
+        }
+    }
+
     /**
      * Registers a new external function.
      *
@@ -215,11 +685,28 @@ public class Module {
      * @return Function interface
      */
     protected Function register(String functionName, Function function) {
-        if (!this.functions.containsKey(functionName))
-            this.functions.put(functionName, function);
+        this.metrics.putIfAbsent(functionName, new Metrics());
+        this.functions.putIfAbsent(functionName, function);
         return function;
     }
 
+    /**
+     * Registers a new external function that takes typed arguments.
+     * The arguments are decoded according to the signature before every call, and malformed arguments are reported
+     * without calling the function. {@link AsyncTypedFunction}s are registered as asynchronous functions.
+     *
+     * @param functionName Function name
+     * @param signature    Argument types
+     * @param function     Typed function interface
+     * @return Function interface
+     */
+    protected Function register(String functionName, Signature signature, TypedFunction function) {
+        // Keep asynchronous functions asynchronous
+        if (function instanceof AsyncTypedFunction)
+            return register(functionName, new SignedAsyncFunction(signature, (AsyncTypedFunction) function));
+        return register(functionName, new SignedFunction(signature, function));
+    }
+
     /**
      * Unregisters an external function.
      *
@@ -227,8 +714,63 @@ public class Module {
      * @return Function interface
      */
     protected Function unregister(String functionName) {
-        if (this.functions.containsKey(functionName))
-            return this.functions.remove(functionName);
-        return null;
+        this.metrics.remove(functionName);
+        return this.functions.remove(functionName);
+    }
+
+    /**
+     * This interface is used to mark the functions registered by every module.
+     */
+    private interface BuiltInFunction extends Function {
+    }
+
+    /**
+     * This is the string view of the internal dictionary, reading and writing through the module.
+     */
+    private class Variables extends AbstractMap<String, String> {
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? Module.this.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            String previous = get(key);
+            set(key, value);
+            return previous;
+        }
+
+        @Override
+        public String remove(Object key) {
+            String previous = get(key);
+            if (previous != null)
+                set((String) key, null);
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            for (String name : dictionary.keySet()) {
+                set(name, null);
+            }
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            // Copy the current values, leaving out empty ones
+            HashMap<String, String> values = new HashMap<>();
+            for (String name : dictionary.keySet()) {
+                String value = Module.this.get(name);
+                if (value != null)
+                    values.put(name, value);
+            }
+            return values.entrySet();
+        }
     }
 }
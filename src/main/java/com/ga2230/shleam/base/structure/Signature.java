@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+/**
+ * This class is used to describe the arguments a {@link TypedFunction} takes, and to decode them from a parameter
+ * straight into primitives, without splitting it into intermediate strings.
+ */
+public class Signature {
+
+    /**
+     * The argument types. A string argument takes the rest of the parameter, so it may only be the last one.
+     */
+    public enum Type {
+        INT("int"),
+        LONG("long"),
+        DOUBLE("double"),
+        BOOLEAN("boolean"),
+        STRING("string");
+
+        private String name;
+
+        Type(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    // Signature constants
+    private static final char ARGUMENT_SEPARATOR = ' ';
+    private static final String TRUE = "true";
+    private static final String FALSE = "false";
+
+    // Largest power of ten and mantissa that can be combined into a correctly rounded double
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final long MAXIMUM_EXACT_MANTISSA = 1L << 53;
+
+    private Type[] types;
+    private String description;
+
+    /**
+     * Default constructor.
+     *
+     * @param types Argument types
+     */
+    private Signature(Type[] types) {
+        this.types = types;
+        // Create the description
+        StringBuilder builder = new StringBuilder("(");
+        for (int index = 0; index < types.length; index++) {
+            if (index > 0)
+                builder.append(", ");
+            builder.append(types[index]);
+        }
+        this.description = builder.append(")").toString();
+    }
+
+    /**
+     * Creates a new signature.
+     *
+     * @param types Argument types
+     * @return Signature
+     */
+    public static Signature of(Type... types) {
+        // Make sure a string argument is the last one
+        for (int index = 0; index < types.length - 1; index++) {
+            if (types[index] == Type.STRING)
+                throw new IllegalArgumentException("A string argument must be the last one");
+        }
+        return new Signature(types.clone());
+    }
+
+    /**
+     * Creates a new arguments object that fits this signature.
+     *
+     * @return Arguments
+     */
+    Arguments arguments() {
+        return new Arguments(types.length);
+    }
+
+    /**
+     * Decodes a parameter into an arguments object.
+     *
+     * @param parameter Parameter
+     * @param arguments Arguments
+     * @return Whether the parameter matched the signature
+     */
+    boolean decode(String parameter, Arguments arguments) {
+        if (parameter == null)
+            parameter = "";
+        int position = 0;
+        int length = parameter.length();
+        for (int index = 0; index < types.length; index++) {
+            // Skip separators
+            while (position < length && parameter.charAt(position) == ARGUMENT_SEPARATOR)
+                position++;
+            if (position == length)
+                return false;
+            // Find the end of the argument
+            int end = position;
+            while (end < length && parameter.charAt(end) != ARGUMENT_SEPARATOR)
+                end++;
+            // Decode the argument
+            switch (types[index]) {
+                case INT:
+                case LONG:
+                    if (!decodeInteger(parameter, position, end, types[index] == Type.INT, arguments, index))
+                        return false;
+                    break;
+                case DOUBLE:
+                    if (!decodeDecimal(parameter, position, end, arguments, index))
+                        return false;
+                    break;
+                case BOOLEAN:
+                    if (matches(parameter, position, end, TRUE))
+                        arguments.setInteger(index, 1);
+                    else if (matches(parameter, position, end, FALSE))
+                        arguments.setInteger(index, 0);
+                    else
+                        return false;
+                    break;
+                case STRING:
+                    // Take the rest of the parameter
+                    arguments.setString(index, parameter.substring(position));
+                    end = length;
+                    break;
+            }
+            position = end;
+        }
+        // Make sure there are no leftovers
+        while (position < length && parameter.charAt(position) == ARGUMENT_SEPARATOR)
+            position++;
+        return position == length;
+    }
+
+    /**
+     * Decodes a decimal integer.
+     *
+     * @param string    Source
+     * @param start     Start index
+     * @param end       End index
+     * @param narrow    Whether the value must fit an int
+     * @param arguments Arguments
+     * @param index     Argument index
+     * @return Whether the integer is valid
+     */
+    private static boolean decodeInteger(String string, int start, int end, boolean narrow, Arguments arguments, int index) {
+        boolean negative = string.charAt(start) == '-';
+        if (negative || string.charAt(start) == '+')
+            start++;
+        if (start == end)
+            return false;
+        // Accumulate negatively, so that the minimum value fits
+        long limit = narrow ? Integer.MIN_VALUE : Long.MIN_VALUE;
+        if (!negative)
+            limit = -(narrow ? Integer.MAX_VALUE : Long.MAX_VALUE);
+        long value = 0;
+        for (int position = start; position < end; position++) {
+            int digit = string.charAt(position) - '0';
+            if (digit < 0 || digit > 9)
+                return false;
+            // Check for overflow
+            if (value < limit / 10)
+                return false;
+            value *= 10;
+            if (value < limit + digit)
+                return false;
+            value -= digit;
+        }
+        arguments.setInteger(index, negative ? value : -value);
+        return true;
+    }
+
+    /**
+     * Decodes a decimal number, in plain or scientific notation.
+     *
+     * @param string    Source
+     * @param start     Start index
+     * @param end       End index
+     * @param arguments Arguments
+     * @param index     Argument index
+     * @return Whether the number is valid
+     */
+    private static boolean decodeDecimal(String string, int start, int end, Arguments arguments, int index) {
+        int position = start;
+        boolean negative = string.charAt(position) == '-';
+        if (negative || string.charAt(position) == '+')
+            position++;
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean exact = true;
+        boolean point = false;
+        // Read the digits and the decimal point
+        for (; position < end; position++) {
+            char current = string.charAt(position);
+            if (current == '.' && !point) {
+                point = true;
+            } else if (current >= '0' && current <= '9') {
+                digits++;
+                if (mantissa < MAXIMUM_EXACT_MANTISSA / 10) {
+                    mantissa = mantissa * 10 + (current - '0');
+                    if (point)
+                        exponent--;
+                } else {
+                    // Too many digits for the fast path
+                    exact = false;
+                }
+            } else {
+                break;
+            }
+        }
+        if (digits == 0)
+            return false;
+        // Read the exponent
+        if (position < end && (string.charAt(position) == 'e' || string.charAt(position) == 'E')) {
+            arguments.setInteger(index, 0);
+            if (!decodeInteger(string, position + 1, end, true, arguments, index))
+                return false;
+            exponent += arguments.getInt(index);
+            position = end;
+        }
+        if (position != end)
+            return false;
+        double value;
+        if (exact && exponent >= -22 && exponent <= 22) {
+            // Both the mantissa and the power of ten are exact, so a single operation rounds correctly
+            value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            if (negative)
+                value = -value;
+        } else {
+            // Fall back to the full parser for long or extreme numbers
+            try {
+                value = Double.parseDouble(string.substring(start, end));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        arguments.setDecimal(index, value);
+        return true;
+    }
+
+    /**
+     * Checks whether a region of a string matches a word, ignoring case.
+     *
+     * @param string Source
+     * @param start  Start index
+     * @param end    End index
+     * @param word   Word
+     * @return Whether it matches
+     */
+    private static boolean matches(String string, int start, int end, String word) {
+        return end - start == word.length() && string.regionMatches(true, start, word, 0, word.length());
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
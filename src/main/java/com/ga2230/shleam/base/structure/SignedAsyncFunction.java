@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This is used to adapt an {@link AsyncTypedFunction} to the {@link AsyncFunction} interface, decoding its arguments on every call.
+ * Unlike synchronous calls, every call gets arguments of its own, which stay valid until its future completes.
+ */
+class SignedAsyncFunction extends SignedFunction implements AsyncFunction {
+
+    private AsyncTypedFunction function;
+
+    /**
+     * Default constructor.
+     *
+     * @param signature Signature
+     * @param function  Asynchronous typed function
+     */
+    SignedAsyncFunction(Signature signature, AsyncTypedFunction function) {
+        super(signature, function);
+        this.function = function;
+    }
+
+    @Override
+    public CompletableFuture<Result> submit(String parameter) throws Exception {
+        // Decode the arguments into a fresh instance, since the function may keep using them after returning
+        Signature signature = getSignature();
+        Arguments arguments = signature.arguments();
+        if (!signature.decode(parameter, arguments))
+            return CompletableFuture.completedFuture(malformed());
+        // Submit the function
+        return function.submit(arguments);
+    }
+
+    @Override
+    public long getTimeout() {
+        return function.getTimeout();
+    }
+
+    @Override
+    public Result execute(String parameter) throws Exception {
+        // Wait for the result, like any other asynchronous function
+        return AsyncFunction.super.execute(parameter);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+/**
+ * This is used to adapt a {@link TypedFunction} to the {@link Function} interface, decoding its arguments on every call.
+ * {@link AsyncTypedFunction}s are adapted by {@link SignedAsyncFunction}.
+ */
+class SignedFunction implements Function {
+
+    private Signature signature;
+    private TypedFunction function;
+
+    // Reusable arguments, one per calling thread
+    private ThreadLocal<Arguments> arguments;
+
+    /**
+     * Default constructor.
+     *
+     * @param signature Signature
+     * @param function  Typed function
+     */
+    SignedFunction(Signature signature, TypedFunction function) {
+        this.signature = signature;
+        this.function = function;
+        this.arguments = ThreadLocal.withInitial(signature::arguments);
+    }
+
+    @Override
+    public Result execute(String parameter) throws Exception {
+        // Decode the arguments
+        Arguments arguments = decode(parameter);
+        if (arguments == null)
+            return malformed();
+        // Execute the function
+        return function.execute(arguments);
+    }
+
+    /**
+     * Decodes a parameter into the calling thread's reusable arguments.
+     *
+     * @param parameter Parameter
+     * @return Arguments, or null when the parameter is malformed
+     */
+    Arguments decode(String parameter) {
+        Arguments arguments = this.arguments.get();
+        return signature.decode(parameter, arguments) ? arguments : null;
+    }
+
+    /**
+     * Creates the result of a call with malformed arguments.
+     *
+     * @return Failure result
+     */
+    Result malformed() {
+        return Result.notFinished("Malformed arguments, expected " + signature);
+    }
+
+    /**
+     * Getter for signature.
+     *
+     * @return The signature
+     */
+    Signature getSignature() {
+        return signature;
+    }
+}
@@ -0,0 +1,14 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+/**
+ * This interface is used to define a registerable function that takes typed arguments, decoded according to its {@link Signature}.
+ * The arguments object is reused, and is only valid during the call.
+ */
+public interface TypedFunction {
+    Result execute(Arguments arguments) throws Exception;
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+import com.ga2230.shleam.base.utils.JSONBuilder;
+
+/**
+ * This class is used to hold a single value of a module's internal dictionary, along with the version it was last changed at.
+ * <p>
+ * Values are stored either as a String or as a primitive, which is updated in place and only formatted when read.
+ */
+public class Variable {
+
+    // Value types
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_DOUBLE = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_BOOLEAN = 3;
+
+    // Volatile, so that 64-bit values are never torn and reads are ordered with the module's seqlock
+    private volatile int type = TYPE_STRING;
+    private volatile String value = null;
+    private volatile double doubleValue = 0;
+    private volatile long longValue = 0;
+    private volatile boolean booleanValue = false;
+    private volatile long version = 0;
+
+    /**
+     * Package-private constructor, variables are created by their module.
+     */
+    Variable() {
+    }
+
+    /**
+     * Updates the value to a String.
+     *
+     * @param value New value
+     * @return Whether the value actually changed
+     */
+    boolean set(String value) {
+        if (this.type == TYPE_STRING && (this.value == null ? value == null : this.value.equals(value)))
+            return false;
+        this.type = TYPE_STRING;
+        this.value = value;
+        return true;
+    }
+
+    /**
+     * Updates the value to a double.
+     *
+     * @param value New value
+     * @return Whether the value actually changed
+     */
+    boolean setDouble(double value) {
+        if (this.type == TYPE_DOUBLE && Double.doubleToLongBits(this.doubleValue) == Double.doubleToLongBits(value))
+            return false;
+        this.type = TYPE_DOUBLE;
+        this.doubleValue = value;
+        return true;
+    }
+
+    /**
+     * Updates the value to a long.
+     *
+     * @param value New value
+     * @return Whether the value actually changed
+     */
+    boolean setLong(long value) {
+        if (this.type == TYPE_LONG && this.longValue == value)
+            return false;
+        this.type = TYPE_LONG;
+        this.longValue = value;
+        return true;
+    }
+
+    /**
+     * Updates the value to a boolean.
+     *
+     * @param value New value
+     * @return Whether the value actually changed
+     */
+    boolean setBoolean(boolean value) {
+        if (this.type == TYPE_BOOLEAN && this.booleanValue == value)
+            return false;
+        this.type = TYPE_BOOLEAN;
+        this.booleanValue = value;
+        return true;
+    }
+
+    /**
+     * Stamps the value with the version it was changed at.
+     *
+     * @param version Version
+     */
+    void stamp(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Checks whether there is no value, in which case it is left out of the telemetry.
+     *
+     * @return Is empty
+     */
+    public boolean isEmpty() {
+        return type == TYPE_STRING && value == null;
+    }
+
+    /**
+     * Writes the value as JSON. Non-finite doubles, which JSON can't represent, are written as strings.
+     *
+     * @param builder Buffer
+     */
+    public void write(StringBuilder builder) {
+        switch (type) {
+            case TYPE_DOUBLE:
+                if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue))
+                    builder.append('"').append(doubleValue).append('"');
+                else
+                    JSONBuilder.number(builder, doubleValue);
+                break;
+            case TYPE_LONG:
+                builder.append(longValue);
+                break;
+            case TYPE_BOOLEAN:
+                builder.append(booleanValue);
+                break;
+            default:
+                JSONBuilder.quote(builder, value);
+        }
+    }
+
+    /**
+     * Getter for value, formatting primitive values.
+     *
+     * @return The value
+     */
+    public String getValue() {
+        switch (type) {
+            case TYPE_DOUBLE:
+                return String.valueOf(doubleValue);
+            case TYPE_LONG:
+                return String.valueOf(longValue);
+            case TYPE_BOOLEAN:
+                return String.valueOf(booleanValue);
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Getter for version.
+     *
+     * @return The version the value was last changed at
+     */
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,13 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+/**
+ * This interface is used to visit the values of a module tree's internal dictionaries.
+ */
+public interface VariableVisitor {
+    void visit(Module module, String name, Variable variable);
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.utils;
+
+/**
+ * This is used to write JSON values straight into a reusable buffer, formatted exactly like org.json formats them.
+ */
+public abstract class JSONBuilder {
+
+    // Hex digits for unicode escapes
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Appends a quoted and escaped string.
+     *
+     * @param builder Buffer
+     * @param string  String
+     * @return Buffer
+     */
+    public static StringBuilder quote(StringBuilder builder, String string) {
+        builder.append('"');
+        char previous = 0;
+        for (int index = 0; index < string.length(); index++) {
+            char current = string.charAt(index);
+            switch (current) {
+                case '\\':
+                case '"':
+                    builder.append('\\').append(current);
+                    break;
+                case '/':
+                    if (previous == '<')
+                        builder.append('\\');
+                    builder.append(current);
+                    break;
+                case '\b':
+                    builder.append("\\b");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\f':
+                    builder.append("\\f");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    if (current < ' ' || (current >= '\u0080' && current < '\u00a0') || (current >= '\u2000' && current < '\u2100')) {
+                        builder.append("\\u").append(HEX[(current >> 12) & 0xF]).append(HEX[(current >> 8) & 0xF]).append(HEX[(current >> 4) & 0xF]).append(HEX[current & 0xF]);
+                    } else {
+                        builder.append(current);
+                    }
+            }
+            previous = current;
+        }
+        return builder.append('"');
+    }
+
+    /**
+     * Appends a finite double, without trailing zeros.
+     *
+     * @param builder Buffer
+     * @param value   Value
+     * @return Buffer
+     */
+    public static StringBuilder number(StringBuilder builder, double value) {
+        int start = builder.length();
+        builder.append(value);
+        // Look for a decimal point and an exponent
+        boolean point = false;
+        for (int index = start; index < builder.length(); index++) {
+            char current = builder.charAt(index);
+            if (current == 'E' || current == 'e')
+                return builder;
+            if (current == '.')
+                point = true;
+        }
+        // Strip trailing zeros and a trailing decimal point
+        if (point) {
+            int end = builder.length();
+            while (builder.charAt(end - 1) == '0')
+                end--;
+            if (builder.charAt(end - 1) == '.')
+                end--;
+            builder.setLength(end);
+        }
+        return builder;
+    }
+}
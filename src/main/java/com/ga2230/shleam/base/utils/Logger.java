@@ -5,20 +5,280 @@
 
 package com.ga2230.shleam.base.utils;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * This is used to log errors, warnings, and additional information.
+ * <p>
+ * Logging never blocks and never does I/O on the caller's thread (e.g. the control loop): messages are appended to a
+ * preallocated lock-free ring buffer, and a single background thread formats them and writes them to the output.
+ * When the buffer is full, messages are dropped and counted instead.
  */
 public abstract class Logger {
 
     /**
-     * Log a message.
+     * The levels of logged messages, from the least to the most severe.
+     */
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARNING,
+        ERROR
+    }
+
+    // Ring buffer capacity (a power of two)
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+
+    // Log tag
+    private static final String TAG = "Logger";
+
+    // Ring buffer slots, each one available for writing when its sequence equals the writer's position
+    private static final Entry[] ENTRIES = new Entry[CAPACITY];
+
+    // Next position to write to, and next position to read from (only touched by the draining thread)
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static long head = 0;
+
+    // Dropped message counters
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static long reportedDropped = 0;
+
+    // Minimum logged level
+    private static volatile Level level = Level.INFO;
+
+    // Output stream, and whether it was opened by the logger (and should be closed once replaced)
+    private static volatile PrintStream output = System.out;
+    private static boolean owned = false;
+
+    // Whether the drain thread is (about to be) parked, and should be unparked once a message is published
+    private static volatile boolean sleeping = false;
+
+    // Reusable line buffer for the draining thread
+    private static final StringBuilder LINE = new StringBuilder();
+
+    // Drain thread, which sleeps until a message is published
+    private static final Thread DRAINER = new Thread(() -> {
+        while (true) {
+            if (drain() == 0) {
+                sleeping = true;
+                // Check again, since a message published before the flag was set did not unpark us
+                if (!isPending())
+                    LockSupport.park();
+                sleeping = false;
+            }
+        }
+    }, "Shleam-Logger");
+
+    static {
+        // Preallocate the entries
+        for (int index = 0; index < CAPACITY; index++) {
+            ENTRIES[index] = new Entry(index);
+        }
+        // Start the drain thread
+        DRAINER.setDaemon(true);
+        DRAINER.start();
+        // Write whatever is left when exiting
+        java.lang.Runtime.getRuntime().addShutdownHook(new Thread(Logger::drain, "Shleam-Logger-Shutdown"));
+    }
+
+    /**
+     * Log an informational message.
      *
      * @param tag     Calling class' tag
      * @param message Message
      */
     public static void log(String tag, String message) {
-        // Print to system output
-        System.out.println(tag.toUpperCase() + ": " + message);
+        log(Level.INFO, tag, message);
+    }
+
+    /**
+     * Log a message.
+     *
+     * @param level   Message level
+     * @param tag     Calling class' tag
+     * @param message Message
+     */
+    public static void log(Level level, String tag, String message) {
+        // Filter by level
+        if (level.ordinal() < Logger.level.ordinal())
+            return;
+        // Claim a slot
+        long position = TAIL.get();
+        Entry entry;
+        while (true) {
+            entry = ENTRIES[(int) (position & MASK)];
+            long difference = entry.sequence - position;
+            if (difference == 0) {
+                // The slot is free, try claiming it
+                if (TAIL.compareAndSet(position, position + 1))
+                    break;
+                position = TAIL.get();
+            } else if (difference < 0) {
+                // The buffer is full, drop the message
+                DROPPED.incrementAndGet();
+                return;
+            } else {
+                // Another thread claimed the slot, retry
+                position = TAIL.get();
+            }
+        }
+        // Fill the slot and publish it
+        entry.level = level;
+        entry.tag = tag;
+        entry.message = message;
+        entry.sequence = position + 1;
+        // Wake the drain thread up
+        if (sleeping)
+            LockSupport.unpark(DRAINER);
+    }
+
+    /**
+     * Sets the minimum level of logged messages.
+     *
+     * @param level Minimum level
+     */
+    public static void setLevel(Level level) {
+        Logger.level = level;
+    }
+
+    /**
+     * Sets the output stream (the system output by default). Messages logged so far are written to the previous one.
+     *
+     * @param output Output stream
+     */
+    public static void setOutput(PrintStream output) {
+        setOutput(output, false);
     }
 
+    /**
+     * Sets the output to a file, appending to it. The file is closed once the output is replaced.
+     *
+     * @param file Output file
+     * @throws IOException Thrown when the file can't be opened
+     */
+    public static void setOutput(File file) throws IOException {
+        setOutput(new PrintStream(new BufferedOutputStream(new FileOutputStream(file, true)), false, "UTF-8"), true);
+    }
+
+    /**
+     * Replaces the output stream, closing the previous one if it was opened by the logger.
+     * Holds the drain lock, so that nothing is being written to the previous stream meanwhile.
+     *
+     * @param output Output stream
+     * @param owned  Whether the stream was opened by the logger
+     */
+    private static synchronized void setOutput(PrintStream output, boolean owned) {
+        // Write whatever was logged so far to the previous stream
+        drain();
+        PrintStream previous = Logger.output;
+        boolean ownedPrevious = Logger.owned;
+        Logger.output = output;
+        Logger.owned = owned;
+        if (ownedPrevious && previous != output)
+            previous.close();
+    }
+
+    /**
+     * Returns the amount of messages dropped because the buffer was full.
+     *
+     * @return Dropped messages
+     */
+    public static long getDropped() {
+        return DROPPED.get();
+    }
+
+    /**
+     * Checks whether a published message or a dropped message count is waiting to be written.
+     *
+     * @return Whether the drain thread has something to write
+     */
+    private static boolean isPending() {
+        return ENTRIES[(int) (head & MASK)].sequence == head + 1 || DROPPED.get() != reportedDropped;
+    }
+
+    /**
+     * Writes all published messages to the output.
+     *
+     * @return Amount of written messages
+     */
+    private static synchronized int drain() {
+        PrintStream stream = output;
+        int written = 0;
+        while (true) {
+            Entry entry = ENTRIES[(int) (head & MASK)];
+            // Make sure the slot was published
+            if (entry.sequence != head + 1)
+                break;
+            // Format the line
+            LINE.setLength(0);
+            if (entry.level != Level.INFO)
+                LINE.append(entry.level).append(' ');
+            appendUpperCase(LINE, entry.tag).append(": ").append(entry.message);
+            // Release the slot for the next round
+            entry.tag = null;
+            entry.message = null;
+            entry.sequence = head + CAPACITY;
+            head++;
+            // Write the line
+            stream.println(LINE);
+            written++;
+        }
+        // Report dropped messages
+        long dropped = DROPPED.get();
+        if (dropped != reportedDropped) {
+            stream.println(TAG.toUpperCase(Locale.ROOT) + ": " + (dropped - reportedDropped) + " messages dropped");
+            reportedDropped = dropped;
+            written++;
+        }
+        if (written > 0)
+            stream.flush();
+        return written;
+    }
+
+    /**
+     * Appends an upper case string to a builder, without creating a new string.
+     *
+     * @param builder Builder
+     * @param string  String
+     * @return Builder
+     */
+    private static StringBuilder appendUpperCase(StringBuilder builder, String string) {
+        if (string == null)
+            return builder.append((String) null);
+        for (int index = 0; index < string.length(); index++) {
+            builder.append(Character.toUpperCase(string.charAt(index)));
+        }
+        return builder;
+    }
+
+    /**
+     * This is a single ring buffer slot.
+     */
+    private static class Entry {
+
+        // Slot state
+        private volatile long sequence;
+
+        // Message
+        private Level level;
+        private String tag;
+        private String message;
+
+        /**
+         * Default constructor.
+         *
+         * @param sequence Initial sequence
+         */
+        private Entry(long sequence) {
+            this.sequence = sequence;
+        }
+    }
 }
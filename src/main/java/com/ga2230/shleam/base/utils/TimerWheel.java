@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.utils;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This is a hashed timer wheel, shared by the whole framework for sleeps, function timeouts and delayed calls.
+ * <p>
+ * A single thread advances the wheel in ticks of a millisecond (measured with {@link System#nanoTime()}), and only visits
+ * the timers hashed to the current slot, so a tick costs the same no matter how many timers are pending. The thread
+ * sleeps until the next tick that has timers (or until a timer is scheduled), so an idle wheel costs nothing. Expired
+ * timers hand their futures to a separate thread, so nothing that depends on them ever delays the wheel.
+ */
+public abstract class TimerWheel {
+
+    // Log tag
+    private static final String TAG = "TimerWheel";
+
+    // Wheel layout (the size is a power of two)
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int SIZE = 512;
+    private static final int MASK = SIZE - 1;
+
+    // Longest delay, beyond which timers never expire in practice (about a century)
+    private static final long MAXIMUM_DELAY = TimeUnit.DAYS.toNanos(36500);
+
+    // Wheel slots (only touched by the wheel's thread)
+    private static final Timeout[] SLOTS = new Timeout[SIZE];
+
+    // Newly scheduled timers, waiting to be hashed into the wheel
+    private static final ConcurrentLinkedQueue<Timeout> SCHEDULED = new ConcurrentLinkedQueue<>();
+
+    // Wheel start time
+    private static final long START = System.nanoTime();
+
+    // Threads completing the futures of expired timers, named with a running number
+    private static final AtomicInteger COMPLETERS = new AtomicInteger();
+    private static final ExecutorService COMPLETER = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Shleam-Timer-Completer-" + COMPLETERS.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Wheel thread
+    private static final Thread THREAD = new Thread(TimerWheel::run, "Shleam-Timer");
+
+    static {
+        // Start the wheel's thread
+        THREAD.setDaemon(true);
+        THREAD.start();
+    }
+
+    /**
+     * Creates a future that completes after a delay. The future completes off the wheel's thread, so its dependents may
+     * take long (or block). Cancelling the future cancels its timer.
+     *
+     * @param delay Delay
+     * @param unit  Delay unit
+     * @return Future
+     */
+    public static CompletableFuture<Void> delay(long delay, TimeUnit unit) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Timeout timeout = schedule(() -> COMPLETER.execute(() -> future.complete(null)), delay, unit);
+        future.whenComplete((result, thrownException) -> timeout.cancel());
+        return future;
+    }
+
+    /**
+     * Fails a future with a {@link TimeoutException} unless it completes within a time limit. The future fails off the
+     * wheel's thread, like {@link #delay(long, TimeUnit)} completes.
+     *
+     * @param future Future
+     * @param limit  Time limit, where 0 (or less) means no limit
+     * @param unit   Time limit unit
+     * @param <T>    Future result type
+     * @return The same future
+     */
+    public static <T> CompletableFuture<T> timeout(CompletableFuture<T> future, long limit, TimeUnit unit) {
+        // Leave unlimited and completed futures alone
+        if (limit <= 0 || future.isDone())
+            return future;
+        Timeout timeout = schedule(() -> COMPLETER.execute(() -> future.completeExceptionally(new TimeoutException("Timed out after " + limit + " " + unit.name().toLowerCase(Locale.ROOT)))), limit, unit);
+        future.whenComplete((result, thrownException) -> timeout.cancel());
+        return future;
+    }
+
+    /**
+     * Schedules a task to run once on the wheel's thread after a delay. The task should be short, since it delays every
+     * other timer. Delays longer than about a century are shortened to it.
+     *
+     * @param task  Task
+     * @param delay Delay
+     * @param unit  Delay unit
+     * @return Timeout, which can be cancelled
+     */
+    public static Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        // Clamp the delay, so that the deadline never overflows
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.min(unit.toNanos(Math.max(0, delay)), MAXIMUM_DELAY));
+        SCHEDULED.add(timeout);
+        // Wake the wheel's thread up, in case it sleeps past the new timer
+        LockSupport.unpark(THREAD);
+        return timeout;
+    }
+
+    /**
+     * Advances the wheel forever.
+     */
+    private static void run() {
+        long tick = 0;
+        while (true) {
+            // Hash the new timers into the wheel
+            Timeout timeout;
+            while ((timeout = SCHEDULED.poll()) != null) {
+                long target = Math.max(tick, (timeout.deadline - START) / TICK);
+                timeout.rounds = (target - tick) / SIZE;
+                int slot = (int) (target & MASK);
+                timeout.next = SLOTS[slot];
+                SLOTS[slot] = timeout;
+            }
+            // Find the next tick with timers, or sleep until a timer is scheduled
+            long next = next(tick);
+            if (next < 0) {
+                LockSupport.park();
+                // Skip the idle ticks
+                tick = Math.max(tick, (System.nanoTime() - START) / TICK);
+                continue;
+            }
+            // Wait for the end of that tick, unless a timer is scheduled meanwhile
+            long deadline = START + (next + 1) * TICK;
+            long now = System.nanoTime();
+            if (now < deadline) {
+                LockSupport.parkNanos(deadline - now);
+                continue;
+            }
+            // Expire the tick's timers (the ticks before it have none)
+            tick = next;
+            int slot = (int) (tick & MASK);
+            Timeout previous = null;
+            timeout = SLOTS[slot];
+            while (timeout != null) {
+                Timeout following = timeout.next;
+                if (timeout.cancelled || timeout.rounds == 0) {
+                    // Unlink the timer
+                    if (previous == null) {
+                        SLOTS[slot] = following;
+                    } else {
+                        previous.next = following;
+                    }
+                    timeout.next = null;
+                    // Run its task
+                    if (!timeout.cancelled)
+                        expire(timeout);
+                } else {
+                    // Wait for another round
+                    timeout.rounds--;
+                    previous = timeout;
+                }
+                timeout = following;
+            }
+            tick++;
+        }
+    }
+
+    /**
+     * Finds the first tick, starting at the given one, whose slot holds timers.
+     *
+     * @param tick First tick
+     * @return Tick, or -1 when the wheel is empty
+     */
+    private static long next(long tick) {
+        for (int offset = 0; offset < SIZE; offset++) {
+            if (SLOTS[(int) ((tick + offset) & MASK)] != null)
+                return tick + offset;
+        }
+        return -1;
+    }
+
+    /**
+     * Runs the task of an expired timer.
+     *
+     * @param timeout Timer
+     */
+    private static void expire(Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (RuntimeException taskException) {
+            Logger.log(Logger.Level.ERROR, TAG, taskException.toString());
+        }
+    }
+
+    /**
+     * This is a single pending timer.
+     */
+    public static class Timeout {
+
+        // Timer
+        private Runnable task;
+        private long deadline;
+        private volatile boolean cancelled = false;
+
+        // Wheel state (only touched by the wheel's thread)
+        private long rounds = 0;
+        private Timeout next = null;
+
+        /**
+         * Default constructor.
+         *
+         * @param task     Task
+         * @param deadline Deadline, in nanoTime
+         */
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timer, so that its task never runs.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Getter for cancelled.
+         *
+         * @return Whether the timer was cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.advanced.recorder;
+
+import com.ga2230.shleam.base.structure.Module;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a recording replays the recorded tree's telemetry, at every recorded time.
+ */
+public class RecorderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * This is a module whose values the tests can change.
+     */
+    private static class Bank extends Module {
+
+        private Bank(String id) {
+            super(id);
+        }
+
+        private void put(String name, String value) {
+            set(name, value);
+        }
+
+        private Bank child(Bank child) {
+            return (Bank) adopt(child);
+        }
+    }
+
+    @Test
+    public void replaysEveryRecordedFrame() throws Exception {
+        Bank root = new Bank("robot");
+        Bank drive = root.child(new Bank("drive"));
+        root.put("mode", "disabled");
+        drive.put("left", "0.0");
+        drive.put("right", "0.0");
+        File file = folder.newFile();
+        Recorder recorder = new Recorder(root, file, 1 << 16);
+        recorder.record();
+        String first = telemetry(root);
+        // Change, clear and add values, and adopt a new module
+        Thread.sleep(20);
+        root.put("mode", "teleop");
+        drive.put("left", "0.5");
+        drive.put("right", null);
+        root.child(new Bank("arm")).put("angle", "90");
+        recorder.record();
+        recorder.flush();
+        String last = telemetry(root);
+
+        Replay replay = new Replay(file);
+        assertEquals("robot", replay.getRootID());
+        assertTrue(replay.getEnd() > replay.getStart());
+        assertSimilar(first, replay.telemetry(replay.getStart()));
+        assertSimilar(last, replay.telemetry(replay.getEnd()));
+    }
+
+    @Test
+    public void replaysAfterTheRingWrapsAround() throws Exception {
+        Bank root = new Bank("robot");
+        for (int index = 0; index < 10; index++) {
+            root.put("sensor_" + index, "0");
+        }
+        File file = folder.newFile();
+        Recorder recorder = new Recorder(root, file, 4096);
+        for (int tick = 0; tick < 1000; tick++) {
+            root.put("sensor_" + tick % 10, String.valueOf(tick));
+            recorder.record();
+        }
+        recorder.flush();
+        assertFalse(recorder.isOverflowed());
+        Replay replay = new Replay(file);
+        assertSimilar(telemetry(root), replay.telemetry(replay.getEnd()));
+    }
+
+    @Test
+    public void clipsLongNames() throws Exception {
+        Bank root = new Bank("robot");
+        StringBuilder name = new StringBuilder();
+        for (int index = 0; index < 40000; index++) {
+            name.append('\u00e9');
+        }
+        root.put(name.toString(), "long");
+        root.put("after", "kept");
+        File file = folder.newFile();
+        Recorder recorder = new Recorder(root, file, 1 << 20);
+        recorder.record();
+        recorder.flush();
+        JSONObject replayed = new JSONObject(new Replay(file).telemetry(Long.MAX_VALUE));
+        // The name is clipped to whole characters within 65535 bytes, and the values after it are intact
+        assertEquals("kept", replayed.getString("after"));
+        assertTrue(replayed.has(name.substring(0, 32767)));
+    }
+
+    @Test
+    public void stopsOnceAKeyframeOverflows() throws Exception {
+        Bank root = new Bank("robot");
+        for (int index = 0; index < 100; index++) {
+            root.put("value_" + index, "some value " + index);
+        }
+        Recorder recorder = new Recorder(root, folder.newFile(), 512);
+        recorder.record();
+        assertTrue(recorder.isOverflowed());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFilesThatAreNotRecordings() throws Exception {
+        new Replay(folder.newFile());
+    }
+
+    private static String telemetry(Module module) throws Exception {
+        return String.valueOf(module.execute("telemetry", null).getResult());
+    }
+
+    private static void assertSimilar(String expected, String actual) {
+        assertTrue(expected + " vs " + actual, new JSONObject(expected).similar(new JSONObject(actual)));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the allocation-free codecs against the JDK's.
+ */
+public class CodecTest {
+
+    private static final String[] STRINGS = {"", "a", "hello world", "\u00e9\u00e8", "\u4e2d\u6587", "\ud83d\ude00 smile", "\u0000\u007f\u0080\u07ff\u0800\uffff"};
+
+    @Test
+    public void encodesUTF8LikeTheJDK() {
+        for (String string : STRINGS) {
+            byte[] output = new byte[Codec.maximumUTF8Length(string.length())];
+            int length = Codec.encodeUTF8(string, output, 0);
+            assertArrayEquals(string, string.getBytes(StandardCharsets.UTF_8), Arrays.copyOf(output, length));
+        }
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() {
+        byte[] output = new byte[Codec.maximumUTF8Length(3)];
+        int length = Codec.encodeUTF8("a\ud800b", output, 0);
+        assertEquals("a?b", new String(output, 0, length, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void encodesBase64LikeTheJDK() {
+        Random random = new Random(2230);
+        for (int size = 0; size < 64; size++) {
+            byte[] input = new byte[size];
+            random.nextBytes(input);
+            byte[] output = new byte[Codec.base64Length(size)];
+            int length = Codec.encodeBase64(input, 0, size, output, 0);
+            assertEquals(output.length, length);
+            assertArrayEquals(Base64.getEncoder().encode(input), output);
+        }
+    }
+
+    @Test
+    public void decodesBase64WithAndWithoutPadding() {
+        Random random = new Random(2230);
+        for (int size = 0; size < 64; size++) {
+            byte[] input = new byte[size];
+            random.nextBytes(input);
+            byte[] padded = Base64.getEncoder().encode(input);
+            byte[] unpadded = Base64.getEncoder().withoutPadding().encode(input);
+            assertArrayEquals(input, decode(padded));
+            assertArrayEquals(input, decode(unpadded));
+        }
+    }
+
+    @Test
+    public void decodesBase64InPlace() {
+        byte[] buffer = "aGVsbG8gd29ybGQ=".getBytes(StandardCharsets.US_ASCII);
+        int length = Codec.decodeBase64(buffer, 0, buffer.length, buffer, 0);
+        assertEquals("hello world", new String(buffer, 0, length, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void rejectsMalformedBase64() {
+        for (String malformed : new String[]{"a", "ab!d", "ab=d", "a===", "abc==", "abcde"}) {
+            byte[] input = malformed.getBytes(StandardCharsets.US_ASCII);
+            assertEquals(malformed, -1, Codec.decodeBase64(input, 0, input.length, new byte[input.length], 0));
+        }
+    }
+
+    private static byte[] decode(byte[] input) {
+        byte[] output = new byte[input.length];
+        int length = Codec.decodeBase64(input, 0, input.length, output, 0);
+        return Arrays.copyOf(output, length);
+    }
+}
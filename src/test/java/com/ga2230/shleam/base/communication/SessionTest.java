@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.communication;
+
+import com.ga2230.shleam.base.structure.AsyncFunction;
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Result;
+import com.ga2230.shleam.base.utils.TimerWheel;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the session protocol end to end, from received bytes to sent responses.
+ */
+public class SessionTest {
+
+    private final Module module = new Module("bank") {{
+        register("echo", Result::finished);
+        register("thread", parameter -> Result.finished(Thread.currentThread().getName()));
+        register("fail", parameter -> {
+            throw new IllegalStateException("failed");
+        });
+        register("later", (AsyncFunction) parameter -> TimerWheel.delay(50, TimeUnit.MILLISECONDS).thenApply(done -> Result.finished("later " + parameter)));
+        adopt(new Module("vault"));
+    }};
+
+    // Sent responses, one per send
+    private final BlockingQueue<byte[]> sent = new LinkedBlockingQueue<>();
+
+    private final Transport transport = new Transport() {
+        @Override
+        public void send(ByteBuffer response) {
+            byte[] bytes = new byte[response.remaining()];
+            response.get(bytes);
+            sent.add(bytes);
+        }
+
+        @Override
+        public void send(byte[] response, int length) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(response, 0, bytes, 0, length);
+            sent.add(bytes);
+        }
+
+        @Override
+        public void push(Subscription subscription) {
+        }
+    };
+
+    @Test
+    public void answersTextCalls() throws Exception {
+        Session session = new Session(module, transport, Runnable::run);
+        assertEquals("true:hello world", call(session, "bank echo hello world"));
+        assertEquals("true:null", call(session, "bank echo"));
+        assertEquals("false:Module not found", call(session, "nobody echo"));
+        assertEquals("false:java.lang.IllegalStateException: failed", call(session, "bank fail"));
+        assertTrue(call(session, "bank.vault help").contains("Showing help for module \"vault\""));
+    }
+
+    @Test
+    public void answersBase64CallsInBase64() throws Exception {
+        Session session = new Session(module, transport, Runnable::run);
+        String parameter = "multi\nline \u00e9";
+        String response = call(session, "base64:" + encode("bank echo " + parameter));
+        assertTrue(response.startsWith("true:"));
+        assertEquals(parameter, decode(response.substring("true:".length())));
+        assertTrue(call(session, "base64:!!!").startsWith("false:"));
+    }
+
+    @Test
+    public void tagsPipelinedCalls() throws Exception {
+        Session session = new Session(module, transport, Runnable::run);
+        assertEquals("#12 true:tagged", call(session, "#12 bank echo tagged"));
+        assertEquals("false:Malformed request ID", call(session, "# bank echo"));
+    }
+
+    @Test
+    public void answersUntaggedCallsInOrder() throws Exception {
+        Session session = new Session(module, transport, Runnable::run);
+        receive(session, "bank later 1\nbank echo 2\nbank later 3\nbank echo 4\n");
+        for (String expected : new String[]{"true:later 1", "true:2", "true:later 3", "true:4"}) {
+            assertEquals(expected, next());
+        }
+    }
+
+    @Test
+    public void answersBatches() throws Exception {
+        Session session = new Session(module, transport, Runnable::run);
+        String response = call(session, "base64:" + encode("!batch atomic\nbank echo 1\nnobody echo 2"));
+        assertEquals("[[true,\"1\"],[false,\"Module not found\"]]", decode(response.substring("true:".length())));
+        response = call(session, "base64:" + encode("!batch atomic\nbank later 1"));
+        assertTrue(decode(response.substring("false:".length())).startsWith("Atomic batches can't call asynchronous functions"));
+    }
+
+    @Test
+    public void answersBinaryFrames() throws Exception {
+        Session session = new Session(module, transport, Runnable::run);
+        assertEquals("true:binary", call(session, "!binary"));
+        receive(session, frame(0, "bank", "echo", "binary \u00e9"));
+        ByteBuffer response = ByteBuffer.wrap(sent.poll(5, TimeUnit.SECONDS));
+        assertEquals(response.remaining() - 4, response.getInt());
+        assertEquals(0, response.getInt());
+        assertEquals(Session.STATUS_FINISHED, response.get());
+        assertEquals("binary \u00e9", StandardCharsets.UTF_8.decode(response).toString());
+        // Frames split across reads are reassembled
+        byte[] split = frame(7, "nobody", "echo", null);
+        receive(session, Arrays.copyOfRange(split, 0, 3));
+        receive(session, Arrays.copyOfRange(split, 3, split.length));
+        response = ByteBuffer.wrap(sent.poll(5, TimeUnit.SECONDS));
+        response.getInt();
+        assertEquals(7, response.getInt());
+        assertEquals(Session.STATUS_NOT_FINISHED, response.get());
+    }
+
+    @Test
+    public void keepsUserFunctionsOffTheReactor() throws Exception {
+        Session session = new Session(module, transport);
+        String receiving = Thread.currentThread().getName();
+        receive(session, "bank thread\nbank echo after\nbank telemetry\n");
+        assertNotEquals(receiving, next().substring("true:".length()));
+        assertEquals("true:after", next());
+        assertTrue(next().startsWith("true:{"));
+    }
+
+    private void receive(Session session, String received) throws IOException {
+        receive(session, received.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void receive(Session session, byte[] received) throws IOException {
+        session.receive(ByteBuffer.wrap(received));
+    }
+
+    private String call(Session session, String line) throws Exception {
+        receive(session, (line + "\n").getBytes(StandardCharsets.UTF_8));
+        return next();
+    }
+
+    private String next() throws InterruptedException {
+        byte[] response = sent.poll(5, TimeUnit.SECONDS);
+        assertTrue("No response", response != null);
+        String line = new String(response, StandardCharsets.UTF_8);
+        return line.endsWith("\n") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    private static String encode(String string) {
+        return Base64.getEncoder().encodeToString(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String string) {
+        return new String(Base64.getDecoder().decode(string), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] frame(int id, String moduleID, String functionName, String parameter) {
+        byte[] module = moduleID.getBytes(StandardCharsets.UTF_8);
+        byte[] function = functionName.getBytes(StandardCharsets.UTF_8);
+        byte[] body = parameter == null ? new byte[0] : parameter.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + 4 + 1 + module.length + 1 + function.length + body.length);
+        frame.putInt(frame.capacity() - 4).putInt(id).put((byte) module.length).put(module).put((byte) function.length).put(function).put(body);
+        return frame.array();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.script;
+
+import com.ga2230.shleam.base.structure.Module;
+import com.ga2230.shleam.base.structure.Result;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks the ring buffer of queued calls, including wrapping around, growing and dropping.
+ */
+public class CallQueueTest {
+
+    private static final Module MODULE = new Module("queue") {{
+        register("echo", Result::finished);
+    }};
+
+    private static Call call(int index) {
+        return Call.compile("b queue echo " + index, MODULE);
+    }
+
+    @Test
+    public void keepsCallsInOrder() {
+        CallQueue queue = new CallQueue(4, false);
+        ArrayDeque<Call> expected = new ArrayDeque<>();
+        for (int index = 0; index < 100; index++) {
+            Call call = call(index);
+            queue.add(call);
+            expected.add(call);
+            // Remove every third call, so that the ring wraps around and grows while wrapped
+            if (index % 3 == 0)
+                assertSame(expected.poll(), queue.poll());
+        }
+        assertEquals(expected.size(), queue.size());
+        while (!expected.isEmpty()) {
+            assertSame(expected.peek(), queue.peek());
+            assertSame(expected.poll(), queue.poll());
+        }
+        assertEquals(0, queue.size());
+        assertNull(queue.peek());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void growsWhileWrapped() {
+        CallQueue queue = new CallQueue(4, false);
+        Call[] calls = new Call[10];
+        for (int index = 0; index < calls.length; index++) {
+            calls[index] = call(index);
+        }
+        // Move the head to the middle of the ring, then fill it past its capacity
+        queue.add(calls[0]);
+        queue.add(calls[1]);
+        queue.poll();
+        queue.poll();
+        for (int index = 2; index < calls.length; index++) {
+            queue.add(calls[index]);
+        }
+        for (int index = 2; index < calls.length; index++) {
+            assertSame(calls[index], queue.get(index - 2));
+        }
+    }
+
+    @Test
+    public void dropsTheOldestCallWhenBounded() {
+        CallQueue queue = new CallQueue(3, true);
+        Call[] calls = new Call[5];
+        for (int index = 0; index < calls.length; index++) {
+            queue.add(calls[index] = call(index));
+        }
+        assertEquals(3, queue.size());
+        assertSame(calls[2], queue.poll());
+        assertSame(calls[3], queue.poll());
+        assertSame(calls[4], queue.poll());
+    }
+
+    @Test
+    public void replacesTruncatesAndClears() {
+        CallQueue queue = new CallQueue();
+        Call first = call(1);
+        Call second = call(2);
+        Call replacement = call(3);
+        queue.add(first);
+        queue.add(second);
+        queue.set(1, replacement);
+        assertSame(replacement, queue.get(1));
+        queue.truncate(1);
+        assertEquals(1, queue.size());
+        assertSame(first, queue.peek());
+        queue.add(second);
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+    }
+}
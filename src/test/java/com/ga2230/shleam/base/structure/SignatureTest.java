@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.structure;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks argument decoding, and how typed functions report malformed arguments.
+ */
+public class SignatureTest {
+
+    private static final Signature DRIVE = Signature.of(Signature.Type.DOUBLE, Signature.Type.DOUBLE, Signature.Type.INT);
+
+    @Test
+    public void decodesEveryType() {
+        Signature signature = Signature.of(Signature.Type.INT, Signature.Type.LONG, Signature.Type.DOUBLE, Signature.Type.BOOLEAN, Signature.Type.STRING);
+        Arguments arguments = signature.arguments();
+        assertTrue(signature.decode("-12 9000000000 2.5e-3 TRUE the rest of it", arguments));
+        assertEquals(-12, arguments.getInt(0));
+        assertEquals(9000000000L, arguments.getLong(1));
+        assertEquals(0.0025, arguments.getDouble(2), 0);
+        assertTrue(arguments.getBoolean(3));
+        assertEquals("the rest of it", arguments.getString(4));
+    }
+
+    @Test
+    public void decodesDecimalsLikeTheJDK() {
+        Signature signature = Signature.of(Signature.Type.DOUBLE);
+        Arguments arguments = signature.arguments();
+        for (String value : new String[]{"0", "-0.5", "+1.25", "3.141592653589793", "1e22", "1e-300", "123456789012345678901234567890", ".5", "5."}) {
+            assertTrue(value, signature.decode(value, arguments));
+            assertEquals(value, Double.parseDouble(value), arguments.getDouble(0), 0);
+        }
+    }
+
+    @Test
+    public void ignoresExtraSpaces() {
+        Arguments arguments = DRIVE.arguments();
+        assertTrue(DRIVE.decode("  0.5   -0.5 3  ", arguments));
+        assertEquals(0.5, arguments.getDouble(0), 0);
+        assertEquals(-0.5, arguments.getDouble(1), 0);
+        assertEquals(3, arguments.getInt(2));
+    }
+
+    @Test
+    public void rejectsMalformedParameters() {
+        Arguments arguments = DRIVE.arguments();
+        for (String parameter : new String[]{null, "", "0.5 0.5", "0.5 0.5 3 4", "0.5 x 3", "0.5 0.5 3.5", "0.5 0.5 2147483648", "- 0.5 3", "1e 0.5 3"}) {
+            assertFalse(String.valueOf(parameter), DRIVE.decode(parameter, arguments));
+        }
+        Signature flag = Signature.of(Signature.Type.BOOLEAN);
+        assertFalse(flag.decode("yes", flag.arguments()));
+    }
+
+    @Test
+    public void keepsIntegerLimits() {
+        Signature signature = Signature.of(Signature.Type.INT, Signature.Type.LONG);
+        Arguments arguments = signature.arguments();
+        assertTrue(signature.decode("-2147483648 -9223372036854775808", arguments));
+        assertEquals(Integer.MIN_VALUE, arguments.getInt(0));
+        assertEquals(Long.MIN_VALUE, arguments.getLong(1));
+        assertFalse(signature.decode("0 9223372036854775808", arguments));
+    }
+
+    @Test
+    public void reportsMalformedArgumentsWithoutCalling() throws Exception {
+        boolean[] called = {false};
+        Module module = new Module("typed") {{
+            register("drive", DRIVE, arguments -> {
+                called[0] = true;
+                return Result.finished(String.valueOf(arguments.getDouble(0) + arguments.getDouble(1) + arguments.getInt(2)));
+            });
+        }};
+        assertEquals("4.0", module.execute("drive", "0.5 0.5 3").getResult());
+        Result malformed = module.execute("drive", "0.5");
+        assertFalse(malformed.isFinished());
+        assertEquals("Malformed arguments, expected " + DRIVE, malformed.getResult());
+        called[0] = false;
+        module.execute("drive", "x y z");
+        assertFalse(called[0]);
+    }
+
+    @Test
+    public void givesAsynchronousCallsTheirOwnArguments() throws Exception {
+        Signature signature = Signature.of(Signature.Type.STRING);
+        Module module = new Module("typed") {{
+            register("later", signature, (AsyncTypedFunction) arguments -> CompletableFuture.supplyAsync(() -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                }
+                return Result.finished(arguments.getString(0));
+            }));
+        }};
+        CompletableFuture<Result> first = module.submit("later", "first");
+        CompletableFuture<Result> second = module.submit("later", "second");
+        assertEquals("first", first.get().getResult());
+        assertEquals("second", second.get().getResult());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2020 Nadav Tasher of General Angels
+ * https://github.com/GeneralAngels/Shleam
+ */
+
+package com.ga2230.shleam.base.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that timers expire in order, never early, and can be cancelled.
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void expiresTimersInDeadlineOrder() throws InterruptedException {
+        // Schedule out of order, including delays past a whole turn of the wheel
+        long[] delays = {90, 10, 700, 50, 30, 600, 70};
+        List<Long> expired = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(delays.length);
+        for (long delay : delays) {
+            TimerWheel.schedule(() -> {
+                expired.add(delay);
+                latch.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        List<Long> sorted = new ArrayList<>(expired);
+        Collections.sort(sorted);
+        assertEquals(sorted, expired);
+    }
+
+    @Test
+    public void neverExpiresEarly() throws Exception {
+        for (long delay : new long[]{0, 1, 15, 120}) {
+            long start = System.nanoTime();
+            TimerWheel.delay(delay, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+            assertTrue("Delay of " + delay + "ms", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(delay));
+        }
+    }
+
+    @Test
+    public void cancelsTimers() throws InterruptedException {
+        boolean[] ran = {false};
+        TimerWheel.Timeout timeout = TimerWheel.schedule(() -> ran[0] = true, 20, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+        Thread.sleep(100);
+        assertFalse(ran[0]);
+    }
+
+    @Test
+    public void keepsHugeDelaysPending() throws InterruptedException {
+        CompletableFuture<Void> delay = TimerWheel.delay(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        Thread.sleep(50);
+        assertFalse(delay.isDone());
+    }
+
+    @Test
+    public void timesOutSlowFutures() throws Exception {
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        try {
+            TimerWheel.timeout(slow, 20, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+            fail("The future should have timed out");
+        } catch (ExecutionException executionException) {
+            assertTrue(executionException.getCause() instanceof TimeoutException);
+        }
+        // Fast futures, and futures without a limit, are left alone
+        CompletableFuture<String> fast = CompletableFuture.completedFuture("done");
+        assertSame(fast, TimerWheel.timeout(fast, 20, TimeUnit.MILLISECONDS));
+        CompletableFuture<String> unlimited = new CompletableFuture<>();
+        assertSame(unlimited, TimerWheel.timeout(unlimited, 0, TimeUnit.MILLISECONDS));
+    }
+}